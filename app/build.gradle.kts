@@ -1,6 +1,7 @@
 plugins {
     alias(libs.plugins.android.application)
     alias(libs.plugins.kotlin.android)
+    alias(libs.plugins.baselineprofile)
 }
 
 android {
@@ -42,6 +43,14 @@ android {
     composeOptions {
         kotlinCompilerExtensionVersion = "1.5.1"
     }
+    testOptions {
+        // android.util.Log is used by the classes under test
+        unitTests.isReturnDefaultValues = true
+        unitTests.all {
+            // benchmarks are skipped unless the build is run with -Pbenchmark
+            it.systemProperty("tinytalker.benchmark", project.hasProperty("benchmark"))
+        }
+    }
     packaging {
         resources {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
@@ -61,6 +70,9 @@ dependencies {
     implementation(libs.androidx.material3)
     implementation(libs.androidx.constraintlayout)
     implementation(libs.material)
+    // installs the baseline profile (src/main/baseline-prof.txt) when the app is sideloaded
+    implementation(libs.androidx.profileinstaller)
+    "baselineProfile"(project(":macrobenchmark"))
     testImplementation(libs.junit)
     androidTestImplementation(libs.androidx.junit)
     androidTestImplementation(libs.androidx.espresso.core)
@@ -72,4 +84,73 @@ dependencies {
     // ONNX Runtime with GenAI
     implementation("com.microsoft.onnxruntime:onnxruntime-android:latest.release")
     implementation(files("libs/onnxruntime-genai-android-0.4.0-dev.aar"))
-}
\ No newline at end of file
+}
+// fills in the size and the sha256 of every file of the models in src/main/assets/models.json,
+// as published by Hugging Face: ./gradlew :app:pinModelFiles (run it when a model is added or updated)
+tasks.register("pinModelFiles") {
+    group = "tinytalker"
+    description = "Pins the size and the sha256 of the model files in models.json"
+    val manifest = file("src/main/assets/models.json")
+    doLast {
+        fun quote(value: Any?): String = when (value) {
+            is String -> "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+            else -> value.toString()
+        }
+        fun sha256(bytes: ByteArray): String =
+            java.security.MessageDigest.getInstance("SHA-256").digest(bytes).joinToString("") { "%02x".format(it) }
+
+        val json = groovy.json.JsonSlurper()
+        @Suppress("UNCHECKED_CAST")
+        val models = (json.parse(manifest) as Map<String, Any?>)["models"] as List<Map<String, Any?>>
+        val hub = Regex("""https://huggingface\.co/([^/]+/[^/]+)/resolve/([^/]+)/(.*?)/?""")
+        for (model in models) {
+            val source = model["source"] as String
+            val match = hub.matchEntire(source) ?: throw GradleException("Not a Hugging Face source: $source")
+            val (repo, revision, path) = match.destructured
+            @Suppress("UNCHECKED_CAST")
+            val tree = json.parse(java.net.URL("https://huggingface.co/api/models/$repo/tree/$revision/$path"))
+                    as List<Map<String, Any?>>
+            val published = tree.associateBy { (it["path"] as String).substringAfterLast('/') }
+            @Suppress("UNCHECKED_CAST")
+            val files = model["files"] as List<MutableMap<String, Any?>>
+            for (file in files) {
+                val name = file["name"] as String
+                if (file["archive"] != null) {
+                    // the values are the ones of the file, not of the archive published
+                    logger.warn("$name is published compressed, pin its size and sha256 by hand")
+                    continue
+                }
+                val entry = published[name] ?: throw GradleException("$name is not in $source")
+                @Suppress("UNCHECKED_CAST")
+                val lfs = entry["lfs"] as Map<String, Any?>?
+                if (lfs != null) {
+                    file["size"] = (lfs["size"] as Number).toLong()
+                    file["sha256"] = lfs["oid"] as String
+                } else {
+                    // a small file kept in git: its oid is a SHA-1, so it is downloaded and hashed
+                    val bytes = java.net.URL(source + name).readBytes()
+                    file["size"] = bytes.size.toLong()
+                    file["sha256"] = sha256(bytes)
+                }
+            }
+        }
+
+        // written back with the layout of the file: one line per model file
+        val text = StringBuilder("{\n  \"models\": [\n")
+        models.forEachIndexed { index, model ->
+            text.append("    {\n")
+            for ((key, value) in model) {
+                if (key != "files") text.append("      ${quote(key)}: ${quote(value)},\n")
+            }
+            text.append("      \"files\": [\n")
+            @Suppress("UNCHECKED_CAST")
+            val files = (model["files"] as List<Map<String, Any?>>).map { file ->
+                "        { " + file.entries.joinToString(", ") { "${quote(it.key)}: ${quote(it.value)}" } + " }"
+            }
+            text.append(files.joinToString(",\n")).append("\n      ]\n    }")
+            text.append(if (index < models.size - 1) ",\n" else "\n")
+        }
+        text.append("  ]\n}\n")
+        manifest.writeText(text.toString())
+    }
+}
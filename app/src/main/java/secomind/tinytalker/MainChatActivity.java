@@ -2,9 +2,11 @@ package secomind.tinytalker;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.net.Uri;
 import android.os.Bundle;
-import android.util.Log;
-import android.util.Pair;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -12,36 +14,54 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
+import androidx.appcompat.widget.Toolbar;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import ai.onnxruntime.genai.GenAIException;
-import ai.onnxruntime.genai.Generator;
-import ai.onnxruntime.genai.GeneratorParams;
-import ai.onnxruntime.genai.Sequences;
-import ai.onnxruntime.genai.Tokenizer;
-import ai.onnxruntime.genai.TokenizerStream;
+
+import secomind.tinytalker.inference.InferenceEngine;
+import secomind.tinytalker.inference.MetricsRegistry;
+import secomind.tinytalker.inference.ModelLoader;
 import secomind.tinytalker.messaging.ChatAdapter;
 import secomind.tinytalker.messaging.ChatMessage;
+import secomind.tinytalker.messaging.Conversation;
 
-import ai.onnxruntime.genai.Model;
-import secomind.tinytalker.utilities.ModelDownloader;
+import secomind.tinytalker.utilities.ModelRegistry;
 
 public class MainChatActivity extends AppCompatActivity {
 
     private static final String TAG = "secomind.tinytalker.MainChatActivity";
 
+    // Used by the benchmarks (see the macrobenchmark module).
+    // Answer with a fake model, with answers of this many words, instead of loading the real one
+    public static final String EXTRA_FAKE_ANSWER_TOKENS = "secomind.tinytalker.FAKE_ANSWER_TOKENS";
+    // with the fake model, start with a conversation of this many messages
+    public static final String EXTRA_FAKE_HISTORY = "secomind.tinytalker.FAKE_HISTORY";
+
+    // answers per message when the user asks for more of them
+    private static final int CANDIDATES = 3;
+
     private RecyclerView recyclerView;
     private EditText messageInput;
     private Button sendButton;
+    // stops the answer being generated
+    private Button stopButton;
+    // shows what is happening to the model (download, loading...)
+    private TextView statusText;
+    // debug builds only: the numbers of the model (load time, TTFT, tokens/s...)
+    private TextView metricsOverlay;
+
+    // the last search: the positions of the messages found, and the one on screen
+    private String searchQuery;
+    private int[] searchResults = new int[0];
+    private int searchResult;
 
 
     // class necessary with chat applications (manages the messages)
@@ -49,10 +69,19 @@ public class MainChatActivity extends AppCompatActivity {
     // list with the messages exchanged between us and the model
     private List<ChatMessage> chatMessages;
 
-    // represents the GenAI model used in the application
-    private Model model;
-    // tokenizer associated with the above model (they work together)
-    private Tokenizer tokenizer;
+    // owns the GenAI model, its tokenizer and the conversation.
+    // It lives as long as the process, so it survives the recreation of this Activity
+    private InferenceEngine engine;
+
+    // the user picks the files of a model on the phone, to import them
+    private final ActivityResultLauncher<Uri> importFolder = registerForActivityResult(
+            new ActivityResultContracts.OpenDocumentTree(), uri -> {
+                if (uri != null) importModel(Collections.singletonList(uri));
+            });
+    private final ActivityResultLauncher<String[]> importFiles = registerForActivityResult(
+            new ActivityResultContracts.OpenMultipleDocuments(), uris -> {
+                if (uris != null && !uris.isEmpty()) importModel(uris);
+            });
 
 
     private static final String system = "This is a conversation between User and Llama, a friendly chatbot.\n" +
@@ -70,23 +99,38 @@ public class MainChatActivity extends AppCompatActivity {
         recyclerView = findViewById(R.id.recycler_gchat);
         messageInput = findViewById(R.id.edit_gchat_message);
         sendButton = findViewById(R.id.button_gchat_send);
+        stopButton = findViewById(R.id.button_gchat_stop);
+        statusText = findViewById(R.id.text_gchat_indicator);
+        Toolbar toolbar = findViewById(R.id.toolbar_gchannel);
+        if (toolbar != null) setSupportActionBar(toolbar);
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            metricsOverlay = findViewById(R.id.text_gchat_metrics);
+        }
+
+        // the engine (and the conversation) may already be there, if the Activity was recreated
+        engine = InferenceEngine.acquire(this, system);
+        int fakeAnswerTokens = getIntent().getIntExtra(EXTRA_FAKE_ANSWER_TOKENS, 0);
+        if (fakeAnswerTokens > 0) {
+            engine.useFakeModel(fakeAnswerTokens, getIntent().getIntExtra(EXTRA_FAKE_HISTORY, 0));
+        }
 
         // Setup RecyclerView - used to display the messages
         if (recyclerView != null) {
             recyclerView.setLayoutManager(new LinearLayoutManager(this));
-            chatMessages = new ArrayList<>();
+            chatMessages = engine.getChatMessages();
+            // the messages saved on the disk are read only when they are displayed
             chatAdapter = new ChatAdapter(chatMessages);
             recyclerView.setAdapter(chatAdapter);
+            if (!chatMessages.isEmpty()) {
+                recyclerView.scrollToPosition(chatMessages.size() - 1);
+            }
         }
 
         // check the presence of the model
         sendButton.setEnabled(false);
-        // Load the model
-        try {
-            prepareTheModel(this);
-        } catch (GenAIException e) {
-            throw new RuntimeException(e);
-        }
+        // Load the model (in the background)
+        prepareTheModel(this);
+        engine.attach(engineListener);
 
         // prepare the "send" button
         sendButton.setOnClickListener(new View.OnClickListener() {
@@ -102,99 +146,312 @@ public class MainChatActivity extends AppCompatActivity {
             }
         });
 
+        // the answer stops after the token being computed, what was written so far stays
+        stopButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                engine.stopGeneration();
+            }
+        });
+
+    }
+
+    /** Adds the search to the toolbar */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.chat_menu, menu);
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchMessages(query.trim());
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String text) {
+                return false;
+            }
+        });
+        menu.findItem(R.id.action_candidates).setChecked(engine.getCandidateCount() > 1);
+        menu.findItem(R.id.action_compact).setChecked(engine.isCompactionEnabled());
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_candidates) {
+            // the next answers come in three variants, generated together
+            item.setChecked(!item.isChecked());
+            engine.setCandidateCount(item.isChecked() ? CANDIDATES : 1);
+            return true;
+        }
+        if (item.getItemId() == R.id.action_compact) {
+            // the oldest messages of long chats are summarized while the app is idle
+            item.setChecked(!item.isChecked());
+            engine.setCompaction(item.isChecked());
+            return true;
+        }
+        if (item.getItemId() == R.id.action_tune) {
+            if (!engine.retuneModel()) {
+                Toast.makeText(this, "The model is busy, please try again later", Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        }
+        if (item.getItemId() == R.id.action_model) {
+            chooseModel();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_import) {
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.import_model)
+                    .setItems(new String[]{"A folder", "Some files"}, (dialog, which) -> {
+                        if (which == 0) {
+                            importFolder.launch(null);
+                        } else {
+                            importFiles.launch(new String[]{"*/*"});
+                        }
+                    })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /** Lets the user pick one of the models of the manifest; the ones not on the phone are downloaded */
+    private void chooseModel() {
+        final List<ModelRegistry.Entry> models = engine.getModels();
+        String[] names = new String[models.size()];
+        int checked = models.indexOf(engine.getCurrentModel());
+        for (int i = 0; i < names.length; i++) {
+            ModelRegistry.Entry model = models.get(i);
+            names[i] = engine.isOnDevice(model) ? model.name : model.name + " (download)";
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.choose_model)
+                .setSingleChoiceItems(names, checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    if (!engine.switchModel(models.get(which))) {
+                        Toast.makeText(this, "The model is busy, please try again later", Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /** Copies the model chosen by the user in the app, then loads it: no network is needed */
+    private void importModel(List<Uri> uris) {
+        boolean started = engine.importModel(uris, new InferenceEngine.ImportListener() {
+            @Override
+            public void onImportProgress(long bytesCopied, long bytesTotal) {
+                if (isDestroyed() || bytesTotal <= 0) return;
+                showModelStatus("Importing the model: " + (100 * bytesCopied / bytesTotal) + "%");
+            }
+
+            @Override
+            public void onImportFinished(ModelRegistry.Entry model) {
+                if (isDestroyed()) return;
+                if (model == null) {
+                    Toast.makeText(MainChatActivity.this, "Unable to import the model", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(MainChatActivity.this, model.name + " imported", Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+        if (!started) {
+            Toast.makeText(this, "The model is busy, please try again later", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        updateSendButton();
+        showModelStatus("Importing the model...");
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // back from the background: the model must not be unloaded now
+        engine.onForeground();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // the user left the chat: nobody will read the answers.
+        // During a rotation, instead, they keep going in the engine
+        if (isFinishing()) engine.stopAllGenerations();
+        engine.detach(engineListener);
+        engine.release();
+        super.onDestroy();
     }
 
     /** Checks for the presence of the LLM mode.
      * If present, it links the model file to the ONNX object
      * in this class that manages it.
-     * Otherwise, we download a default model (Phi3) from Hugging Face
+     * Otherwise, we download it from Hugging Face: the models the app can use
+     * are listed in assets/models.json (see ModelRegistry), Phi3 mini 4k is the default.
      * In that case, an internet connection is necessary.
      *
+     * All of this happens in the background (see ModelLoader), the UI only
+     * follows the state of the model: the "send" button is enabled when it is READY.
+     *
      * The model files can be saved in the space allocated for the application.
      * use Android studio for this, and do:
      * Device Manager (it should be the lowers icon on the right)
      *
      * Then, once there, navigate through these directories:
-     * data -> data -> secomind.tinitalker -> files
+     * data -> data -> secomind.tinitalker -> files -> models -> (id of the model)
      *
      * Copy and paste the model there. Done.
      *
+     * Or, without Android studio, copy the files of the model anywhere on the phone,
+     * and import them from the menu (see ModelImporter): no network is needed.
+     *
      * */
-    private void prepareTheModel(Context context) throws GenAIException  {
-        // url where to find the default model Phi3mini4k
-        final String baseUrl = "https://huggingface.co/microsoft/Phi-3-mini-4k-instruct-onnx/resolve/main/cpu_and_mobile/cpu-int4-rtn-block-32-acc-level-4/";
-        // list with the files that we REQUIRE in the application allocated memory
-        List<String> files = Arrays.asList(
-                "added_tokens.json",
-                "config.json",
-                "configuration_phi3.py",
-                "genai_config.json",
-                "phi3-mini-4k-instruct-cpu-int4-rtn-block-32-acc-level-4.onnx",
-                "phi3-mini-4k-instruct-cpu-int4-rtn-block-32-acc-level-4.onnx.data",
-                "special_tokens_map.json",
-                "tokenizer.json",
-                "tokenizer.model",
-                "tokenizer_config.json");
-
-        // list that will contain the files that are missing
-        List<Pair<String, String>> urlFilePairs = new ArrayList<>();
-        for (String file : files) {
-            if (!fileExists(context, file)) {
-                urlFilePairs.add(new Pair<>(
-                        baseUrl + file,
-                        file));
+    private void prepareTheModel(Context context) {
+        // nothing happens if the model is already loaded (or being loaded)
+        engine.loadModel();
+    }
+
+    /** Receives the state of the model and the text of the answers from the engine */
+    private final InferenceEngine.Listener engineListener = new InferenceEngine.Listener() {
+        @Override
+        public void onStateChanged(ModelLoader.State state) {
+            onModelStateChanged(state);
+        }
+
+        @Override
+        public void onDownloadProgress(long bytesRead, long bytesTotal) {
+            if (bytesTotal > 0) {
+                showModelStatus("Downloading the model: " + (100 * bytesRead / bytesTotal) + "%");
             }
         }
-        if (urlFilePairs.isEmpty()) { // the list is empy, i.e. everything is presents and nothing needs to be loaded
-            // we just assign the variables model and tokenizer
-            // Display a message using Toast
-            Toast.makeText(this, "All files already exist. Skipping download.", Toast.LENGTH_SHORT).show();
-            Log.d(TAG, "All files already exist. Skipping download.");
-            model = new Model(getFilesDir().getPath());
-            tokenizer = model.createTokenizer();
-            return; // we are done with this method
+
+        @Override
+        public void onMessageUpdated(ChatMessage message, int position, String delta) {
+            // only the new text is bound
+            chatAdapter.notifyTextAppended(message, position, delta);
+            recyclerView.scrollToPosition(position);
         }
 
-        Toast.makeText(this,
-                "Downloading model for the app... Model Size greater than 2GB, please allow a few minutes to download.",
-                Toast.LENGTH_SHORT).show();
+        @Override
+        public void onGenerationFinished(int position) {
+            // the answer may have got its variants
+            chatAdapter.notifyItemChanged(position);
+            updateSendButton();
+            updateMetricsOverlay();
+        }
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
-            ModelDownloader.downloadModel(context, urlFilePairs, new ModelDownloader.DownloadCallback() {
-                @Override
-                public void onProgress(long lastBytesRead, long bytesRead, long bytesTotal) {
-                    long lastPctDone = 100 * lastBytesRead / bytesTotal;
-                    long pctDone = 100 * bytesRead / bytesTotal;
-                    if (pctDone > lastPctDone) {
-                        Log.d(TAG, "Downloading files: " + pctDone + "%");
-                    }
-                }
-                @Override
-                public void onDownloadComplete() {
-                    Log.d(TAG, "All downloads completed.");
-
-                    // Last download completed, create SimpleGenAI
-                    try {
-                        model = new Model(getFilesDir().getPath());
-                        tokenizer = model.createTokenizer();
-                        runOnUiThread(() -> {
-                            Toast.makeText(context, "All downloads completed", Toast.LENGTH_SHORT).show();
-                        });
-                    } catch (GenAIException e) {
-                        e.printStackTrace();
-                        throw new RuntimeException(e);
-                    }
+        @Override
+        public void onConversationOpened() {
+            // the saved messages are read only when they are displayed
+            chatAdapter.notifyDataSetChanged();
+            if (!chatMessages.isEmpty()) {
+                recyclerView.scrollToPosition(chatMessages.size() - 1);
+            }
+            updateSendButton();
+        }
 
+        @Override
+        public void onConversationFailed(String error) {
+            Toast.makeText(MainChatActivity.this, "Unable to open the conversation: " + error, Toast.LENGTH_LONG).show();
+            showModelStatus("The conversation is not available, restart the app to try again");
+            updateSendButton();
+        }
+    };
+
+    /** Shows the last numbers of the model in the debug overlay (if enabled) */
+    private void updateMetricsOverlay() {
+        if (metricsOverlay == null) return;
+        String summary = MetricsRegistry.getInstance().getSummary();
+        metricsOverlay.setVisibility(summary.isEmpty() ? View.GONE : View.VISIBLE);
+        metricsOverlay.setText(summary);
+    }
+
+    /** The "send" button is enabled when the model can answer (new messages wait in a queue)
+     * and the conversation is open,
+     * the "stop" button is shown while an answer is being generated */
+    private void updateSendButton() {
+        boolean enabled = engine.getState() == ModelLoader.State.READY && engine.isConversationOpen();
+        sendButton.setEnabled(enabled);
+        sendButton.setAlpha(enabled ? 1.0f : 0.5f);
+        stopButton.setVisibility(engine.isGenerating() ? View.VISIBLE : View.GONE);
+    }
+
+    /** Follows the state of the model, enabling the "send" button only when it can answer */
+    private void onModelStateChanged(ModelLoader.State state) {
+        updateSendButton();
+        switch (state) {
+            case MISSING:
+                showModelStatus("Some files of the model are missing");
+                break;
+            case DOWNLOADING:
+                Toast.makeText(this,
+                        "Downloading model for the app... Model Size greater than 2GB, please allow a few minutes to download.",
+                        Toast.LENGTH_SHORT).show();
+                showModelStatus("Downloading the model...");
+                break;
+            case TUNING:
+                showModelStatus("Finding the fastest settings for this phone...");
+                break;
+            case LOADING:
+                showModelStatus("Loading the model...");
+                break;
+            case WARMING:
+                showModelStatus("Preparing the model...");
+                break;
+            case READY:
+                showModelStatus(null);
+                updateMetricsOverlay();
+                break;
+            case FAILED:
+                Toast.makeText(this, "Unable to prepare the model", Toast.LENGTH_LONG).show();
+                showModelStatus("The model is not available");
+                break;
+        }
+    }
+
+    /** Shows a message about the model above the text box, or hides it if the message is null */
+    private void showModelStatus(String status) {
+        if (statusText == null) return;
+        statusText.setVisibility(status == null ? View.GONE : View.VISIBLE);
+        statusText.setText(status);
+    }
+
+    /**
+     * Shows the most recent message that contains the words of the query.
+     * Searching the same query again shows the previous one, and so on.
+     */
+    private void searchMessages(String query) {
+        if (query.isEmpty()) return;
+        if (query.equals(searchQuery) && searchResults.length > 0) {
+            // from the most recent to the oldest, then again from the most recent
+            showSearchResult(searchResult > 0 ? searchResult - 1 : searchResults.length - 1);
+            return;
+        }
+        engine.searchMessages(query, new Conversation.SearchListener() {
+            @Override
+            public void onSearchResult(String query, int[] positions) {
+                if (isDestroyed()) return;
+                searchQuery = query;
+                searchResults = positions;
+                if (positions.length == 0) {
+                    Toast.makeText(MainChatActivity.this, "No messages found", Toast.LENGTH_SHORT).show();
+                } else {
+                    showSearchResult(positions.length - 1);
                 }
-            });
+            }
         });
-        executor.shutdown();
     }
 
-    private static boolean fileExists(Context context, String fileName) {
-        File file = new File(context.getFilesDir(), fileName);
-        return file.exists();
+    /** Scrolls the chat to the message found, putting it at the top of the screen */
+    private void showSearchResult(int result) {
+        searchResult = result;
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        layoutManager.scrollToPositionWithOffset(searchResults[result], 0);
+        Toast.makeText(this, "Message " + (searchResults.length - result) + " of " + searchResults.length,
+                Toast.LENGTH_SHORT).show();
     }
 
     private void sendMessage(String message) {
@@ -205,60 +462,16 @@ public class MainChatActivity extends AppCompatActivity {
             return;
         }
 
-        // Create the new message and add it to the list
-        chatMessages.add(new ChatMessage(message, true));
-        chatAdapter.notifyItemInserted(chatMessages.size() - 1);
+        // the engine adds the message and the (still empty) answer to the list
+        if (!engine.sendMessage(message)) {
+            Toast.makeText(MainChatActivity.this, "The model is busy, please wait for the answers", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        chatAdapter.notifyItemRangeInserted(chatMessages.size() - 2, 2);
         // move the screen to this last message location
         recyclerView.scrollToPosition(chatMessages.size() - 1);
 
-        // Disable send button while processing
-        sendButton.setEnabled(false);
-        sendButton.setAlpha(0.5f);
-
-        dealWithMessageOnTheBackground();
-
-
-//        // Get response from model in background
-//        executorService.execute(() -> {
-//            String modelResponse = getModelResponse(message);
-//
-//            mainHandler.post(() -> {
-//                // Add model's response to chat
-//                chatMessages.add(new ChatMessage(modelResponse, false));
-//                chatAdapter.notifyItemInserted(chatMessages.size() - 1);
-//                recyclerView.scrollToPosition(chatMessages.size() - 1);
-//
-//                // Re-enable send button
-//                sendButton.setEnabled(true);
-//            });
-//        });
-    }
-
-    private void dealWithMessageOnTheBackground() {
-        new Thread(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        TokenizerStream stream = null;
-                        GeneratorParams generatorParams = null;
-                        Generator generator = null;
-                        Sequences encodedPrompt = null;
-
-                        try {
-                            stream = tokenizer.createStream();
-                            generatorParams = model.createGeneratorParams();
-
-
-                        } catch (GenAIException e) {
-                            throw new RuntimeException(e);
-                        } finally {
-                            if (generator != null) generator.close();
-                            if (encodedPrompt != null) encodedPrompt.close();
-                            if (stream != null) stream.close();
-                            if (generatorParams != null) generatorParams.close();
-                        }
-                    }
-                }
-        ).start();
+        // show the "stop" button while processing
+        updateSendButton();
     }
 }
@@ -0,0 +1,138 @@
+package secomind.tinytalker.inference;
+
+import java.util.List;
+
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Decides which messages of the chat fit in the context of the model.
+ *
+ * The window has a budget in tokens (what remains of the model max_length after the
+ * system message and the space reserved for the answer). When the history gets longer
+ * than the budget, the oldest messages are dropped. With the PIN_FIRST policy
+ * the first messages are kept in any case, and the dropping starts right after them.
+ *
+ * The window is incremental: it remembers the running total of the tokens and
+ * the index of the first message included, so at every update only the new
+ * messages are looked at, and the list is never scanned again from the beginning.
+ * The messages must already be tokenized (see {@link ChatMessage#getTokenIds()}).
+ */
+public class ContextWindow {
+
+    /** What to do with the oldest messages when the history does not fit anymore */
+    public enum Policy {
+        /** drop the oldest messages first */
+        DROP_OLDEST,
+        /** keep the first messages (e.g. the first question that sets the topic),
+         * then drop the oldest among the others */
+        PIN_FIRST
+    }
+
+    private final int budget;
+    private final Policy policy;
+    private final int pinned;
+    // tokens added by the chat template to every message (tags and end marker)
+    private final int turnOverhead;
+
+    // number of messages already accounted for
+    private int end = 0;
+    // index of the first message after the pinned ones that is still in the window
+    private int start = 0;
+    // tokens of the messages currently in the window
+    private long total = 0;
+
+    /**
+     * @param budget the maximum number of tokens the messages can use
+     * @param policy what to do when the budget is exceeded
+     * @param pinned how many messages are kept with the PIN_FIRST policy (ignored with DROP_OLDEST)
+     * @param turnOverhead the tokens added by the template to every message
+     */
+    public ContextWindow(int budget, Policy policy, int pinned, int turnOverhead) {
+        this.budget = budget;
+        this.policy = policy;
+        this.pinned = policy == Policy.PIN_FIRST ? pinned : 0;
+        this.turnOverhead = turnOverhead;
+    }
+
+    /**
+     * Accounts for the messages added to the history since the last update,
+     * and moves the beginning of the window forward if needed.
+     * The history is expected to only grow, call {@link #reset()} otherwise.
+     */
+    public void update(List<ChatMessage> history) {
+        if (history.size() < end) {
+            reset();
+        }
+        for (int i = end; i < history.size(); i++) {
+            total += cost(history.get(i));
+        }
+        end = history.size();
+        if (start < getPinnedCount()) {
+            start = getPinnedCount();
+        }
+
+        // drop the oldest (not pinned) messages, but always keep the last one
+        while (total > budget && start < end - 1) {
+            total -= cost(history.get(start));
+            start++;
+        }
+    }
+
+    /** Number of pinned messages at the beginning of the history */
+    public int getPinnedCount() {
+        return Math.min(pinned, end);
+    }
+
+    /** Index of the first message after the pinned ones that is in the window */
+    public int getStart() {
+        return start;
+    }
+
+    /** Number of messages accounted for; the window goes up to this index (excluded) */
+    public int getEnd() {
+        return end;
+    }
+
+    /** Tokens used by the messages in the window */
+    public long getTotalTokens() {
+        return total;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    public void reset() {
+        end = 0;
+        start = 0;
+        total = 0;
+    }
+
+    /**
+     * Starts the window at the given message, without looking at the ones before it
+     * (except the pinned ones, that must be tokenized). The next {@link #update} accounts
+     * for the messages from there on. Used when a long history is opened, so that
+     * the old messages that would not fit anyway are not tokenized.
+     *
+     * @param history the messages of the chat
+     * @param index the first message after the pinned ones to put in the window
+     */
+    public void startAt(List<ChatMessage> history, int index) {
+        reset();
+        int pinnedCount = Math.min(pinned, history.size());
+        for (int i = 0; i < pinnedCount; i++) {
+            total += cost(history.get(i));
+        }
+        start = Math.max(index, pinnedCount);
+        end = start;
+    }
+
+    /** Tokens added by the template to every message */
+    public int getTurnOverhead() {
+        return turnOverhead;
+    }
+
+    private long cost(ChatMessage message) {
+        return message.getTokenCount() + turnOverhead;
+    }
+}
@@ -0,0 +1,76 @@
+package secomind.tinytalker.inference;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Answers every message with the same text, one word at a time at a fixed pace,
+ * without any model. Used by the benchmarks (see the macrobenchmark module),
+ * so that the runs do not depend on the download, on the model or on the device
+ * being fast enough: only the cost of the UI is measured.
+ */
+public class FakeResponder implements Responder {
+
+    // about the speed of Phi-3 mini on a recent phone
+    private static final long TOKEN_INTERVAL_MS = 40;
+
+    private static final String ANSWER = "This is a fake answer, streamed one word at a time so that "
+            + "the chat can be measured without a model. The text is always the same, and so is the "
+            + "pace of the words, which makes every run of the benchmark look like the previous one. "
+            + "It is long enough to wrap on several lines and to make the message grow while it is displayed.";
+
+    private final int tokens;
+
+    /** @param tokens how many words every answer has (the text is repeated if needed) */
+    public FakeResponder(int tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    public int generate(List<ChatMessage> history, CancellationSignal signal,
+                        StreamingGenerator.TokenListener listener) {
+        String[] words = ANSWER.split(" ");
+        int generated = 0;
+        while (generated < tokens) {
+            if (signal != null && signal.isCanceled()) break;
+            SystemClock.sleep(TOKEN_INTERVAL_MS);
+            listener.onToken((generated == 0 ? "" : " ") + words[generated % words.length]);
+            generated++;
+        }
+        return generated;
+    }
+
+    /** Every answer starts from a different word of the text, one word at a time for all of them */
+    @Override
+    public int[] generateCandidates(List<ChatMessage> history, int count, CancellationSignal signal,
+                                    StreamingGenerator.CandidateListener listener) {
+        String[] words = ANSWER.split(" ");
+        int[] generated = new int[count];
+        for (int step = 0; step < tokens; step++) {
+            if (signal != null && signal.isCanceled()) break;
+            SystemClock.sleep(TOKEN_INTERVAL_MS);
+            for (int i = 0; i < count; i++) {
+                listener.onToken(i, (step == 0 ? "" : " ") + words[(step + 7 * i) % words.length]);
+                generated[i]++;
+            }
+        }
+        return generated;
+    }
+
+    /** A conversation of the given number of messages, alternating the user and the model */
+    public static List<ChatMessage> fakeHistory(int messages) {
+        List<ChatMessage> history = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            boolean isUser = i % 2 == 0;
+            history.add(new ChatMessage(isUser
+                    ? "Message number " + i + ", asking something to the model"
+                    : "Answer number " + i + ". " + ANSWER.substring(0, 40 + (i * 7) % (ANSWER.length() - 40)), isUser));
+        }
+        return history;
+    }
+}
@@ -0,0 +1,98 @@
+package secomind.tinytalker.inference;
+
+import java.util.Locale;
+
+/**
+ * The numbers of one generation: how long it took to encode the prompt, to process it
+ * (prefill) and to produce the answer (decode), and how much native memory it used.
+ *
+ * It is filled by {@link GenerationSession} and {@link StreamingGenerator} on the
+ * generation thread, and then handed to the {@link MetricsRegistry}.
+ * After that it is not changed anymore, so it can be read from any thread.
+ */
+public class GenerationMetrics {
+
+    /** Columns of {@link #toCsvRow()} */
+    public static final String CSV_HEADER = "timestamp,prompt_tokens,generated_tokens,encode_ms,"
+            + "ttft_ms,prefill_ms,decode_ms,prefill_tok_s,decode_tok_s,peak_native_heap_mb,cancelled";
+
+    // wall clock time of the beginning of the generation
+    final long timestamp = System.currentTimeMillis();
+    // System.nanoTime() at the beginning of the generation, TTFT is measured from here
+    final long startNanos = System.nanoTime();
+
+    int promptTokens;
+    int generatedTokens;
+    long encodeNanos;
+    long timeToFirstTokenNanos;
+    long prefillNanos;
+    long decodeNanos;
+    long peakNativeHeapBytes;
+    boolean cancelled;
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getGeneratedTokens() {
+        return generatedTokens;
+    }
+
+    /** Time spent assembling and tokenizing the prompt, in ms */
+    public double getEncodeMillis() {
+        return encodeNanos / 1e6;
+    }
+
+    /** Time to first token: from the beginning of the generation to the first decoded token, in ms */
+    public double getTimeToFirstTokenMillis() {
+        return timeToFirstTokenNanos / 1e6;
+    }
+
+    public double getPrefillMillis() {
+        return prefillNanos / 1e6;
+    }
+
+    public double getDecodeMillis() {
+        return decodeNanos / 1e6;
+    }
+
+    /** Prompt tokens processed per second during the prefill */
+    public double getPrefillTokensPerSecond() {
+        return prefillNanos == 0 ? 0 : promptTokens * 1e9 / prefillNanos;
+    }
+
+    /** Answer tokens produced per second, the first one (that comes with the prefill) excluded */
+    public double getDecodeTokensPerSecond() {
+        return decodeNanos == 0 ? 0 : (generatedTokens - 1) * 1e9 / decodeNanos;
+    }
+
+    /** The highest native heap seen during the generation (the model lives there), in bytes */
+    public long getPeakNativeHeapBytes() {
+        return peakNativeHeapBytes;
+    }
+
+    /** True if the generation was stopped before the end */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public String toCsvRow() {
+        return String.format(Locale.ROOT, "%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%b",
+                timestamp, promptTokens, generatedTokens, getEncodeMillis(),
+                getTimeToFirstTokenMillis(), getPrefillMillis(), getDecodeMillis(),
+                getPrefillTokensPerSecond(), getDecodeTokensPerSecond(),
+                peakNativeHeapBytes / 1048576.0, cancelled);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "TTFT %.0f ms, prefill %d tok @ %.1f tok/s, decode %d tok @ %.1f tok/s, "
+                        + "native heap %.0f MB",
+                getTimeToFirstTokenMillis(), promptTokens, getPrefillTokensPerSecond(),
+                generatedTokens, getDecodeTokensPerSecond(), peakNativeHeapBytes / 1048576.0);
+    }
+}
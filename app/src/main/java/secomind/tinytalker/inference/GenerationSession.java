@@ -0,0 +1,625 @@
+package secomind.tinytalker.inference;
+
+import android.os.CancellationSignal;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ai.onnxruntime.genai.GenAIException;
+import ai.onnxruntime.genai.Model;
+import ai.onnxruntime.genai.Sequences;
+import ai.onnxruntime.genai.Tokenizer;
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * A GenerationSession represents one conversation with the model.
+ * It lives across the turns of the chat and keeps the already tokenized
+ * prefix of the prompt (the system message and all the completed turns),
+ * so that at every new turn only the newly added messages are processed.
+ *
+ * Every message is tokenized only once: its token ids are cached in the
+ * ChatMessage itself, and the prompt is assembled by concatenating them
+ * with the (also cached) tokens of the chat template.
+ * A {@link ContextWindow} decides which messages fit in the max_length of the model.
+ *
+ * When the history is longer than the window (e.g. a long conversation read from
+ * the disk), only the messages at its end that fit are tokenized.
+ *
+ * The session checks that the history it receives is the continuation of
+ * the one it has already processed. If the history was edited or truncated,
+ * or the context window had to drop some old messages, the prefix is
+ * assembled again from the cached tokens (full re-prefill).
+ *
+ * NB: the onnxruntime-genai version in use (0.4.0) builds a new Generator,
+ * and hence a new KV cache, for every generation, and it has no API to append tokens
+ * to a live Generator. Because of this, the session can save the tokenization
+ * of the prefix but not its prefill. {@link #generate} is written so that the prefix
+ * is the only thing that has to be handed to an appending Generator
+ * once the library supports it.
+ *
+ * If a {@link ResponseCache} is set, an answer already given in the same context
+ * is replayed from the cache instead of being generated. The answers generated together
+ * ({@link #generateCandidates}) are sampled, so they are never cached.
+ *
+ * When memory is short (see {@link MemoryGovernor}), the max_length can be made shorter
+ * ({@link #setMaxLength}) and the cached tokens dropped ({@link #trimMemory}): both are
+ * applied at the beginning of the next generation, so the UI thread never waits for the
+ * one running.
+ *
+ * In a long conversation the oldest messages can be compacted ({@link #compact}): the model
+ * writes a short {@link Summary} of them, that goes in the system message and takes their place
+ * in the prompt. The messages themselves do not change, and the pinned ones (PIN_FIRST) stay in
+ * the prompt as they are. Summaries are compacted again with the messages that follow, so the
+ * prompt, and its prefill, stays shorter than the context window.
+ *
+ * Every generation is measured (see {@link GenerationMetrics}) and recorded
+ * in the {@link MetricsRegistry}.
+ */
+public class GenerationSession implements Responder {
+
+    private static final String TAG = "secomind.tinytalker.GenerationSession";
+
+    // tokens kept free in max_length for the answer of the model
+    public static final int DEFAULT_RESERVED_ANSWER_TOKENS = 512;
+    // the conversation is compacted when its messages take this part of the context window
+    public static final float COMPACTION_THRESHOLD = 0.75f;
+    // the last messages are never compacted: the next answer needs them as they are
+    private static final int RECENT_MESSAGES = 4;
+    // the longest summary
+    private static final int SUMMARY_TOKENS = 256;
+    // room kept in the prompt of a summary for the instruction and the previous summary
+    private static final int SUMMARY_PROMPT_OVERHEAD = SUMMARY_TOKENS + 64;
+    private static final String SUMMARY_INSTRUCTION = "Summarize this conversation between a user and an "
+            + "assistant in a few sentences. Keep the names, the facts and the decisions that "
+            + "the next answers may need.\n\n";
+
+    /**
+     * A summary of the first messages of a conversation, written by the model.
+     * It takes the place of the messages from pinnedMessages to coveredMessages (excluded):
+     * the pinned ones before them stay in the prompt.
+     */
+    public static final class Summary {
+        public final String text;
+        // how many messages at the beginning are not in the summary, and stay as they are
+        public final int pinnedMessages;
+        // the messages up to this index (excluded) are in the summary, or pinned
+        public final int coveredMessages;
+        // the last message covered: the summary is ignored if the history is not the same anymore
+        private final String lastCoveredText;
+
+        Summary(String text, int pinnedMessages, int coveredMessages, String lastCoveredText) {
+            this.text = text;
+            this.pinnedMessages = pinnedMessages;
+            this.coveredMessages = coveredMessages;
+            this.lastCoveredText = lastCoveredText;
+        }
+
+        /** True if the history starts with the messages of the summary */
+        boolean appliesTo(List<ChatMessage> history) {
+            return coveredMessages <= history.size()
+                    && history.get(coveredMessages - 1).getMessage().equals(lastCoveredText);
+        }
+    }
+
+    private final Tokenizer tokenizer;
+    private final String system;
+    private final StreamingGenerator streamingGenerator;
+    // the max_length of the model, and the one asked for the next generations
+    private int maxLength;
+    private volatile int requestedMaxLength;
+    // the cached tokens are dropped before the next generation
+    private volatile boolean trimRequested = false;
+    // takes the place of the first messages in the prompt, and the one asked for the next generations
+    private Summary summary;
+    private volatile Summary requestedSummary;
+    private final ContextWindow.Policy policy;
+    private final int pinnedMessages;
+    // answers already given, null to always generate
+    private ResponseCache cache;
+    private String modelId;
+
+    // tokens that the tokenizer puts in front of every encoding (e.g. the BOS token)
+    private int[] leadingTokens;
+    // tokens of the chat template, computed once
+    private int[] systemTokens;
+    private int[] userTag;
+    private int[] assistantTag;
+    private int[] endTag;
+    private ContextWindow window;
+
+    // token ids of the system message followed by the messages in the window
+    private int[] prefix = new int[0];
+    private int prefixLength = 0;
+    // window start when the prefix was assembled
+    private int prefixStart = -1;
+    // number of messages of the history contained in the prefix, and the last of them
+    // (its text and role: the messages read from the disk are not always the same objects)
+    private int committedCount = 0;
+    private String lastCommittedText = null;
+    private boolean lastCommittedUser = false;
+
+    // counters, used to understand how often the prefix is reused
+    private int fullPrefills = 0;
+    private int reusedPrefixes = 0;
+
+    public GenerationSession(Model model, Tokenizer tokenizer, String system) {
+        this(model, tokenizer, system, StreamingGenerator.DEFAULT_MAX_LENGTH, ContextWindow.Policy.DROP_OLDEST, 0);
+    }
+
+    /**
+     * @param maxLength the max_length of the model (prompt + answer)
+     * @param policy what to do with the oldest messages when they do not fit anymore
+     * @param pinnedMessages how many messages at the beginning are kept with the PIN_FIRST policy
+     */
+    public GenerationSession(Model model, Tokenizer tokenizer, String system,
+                             int maxLength, ContextWindow.Policy policy, int pinnedMessages) {
+        this.tokenizer = tokenizer;
+        this.system = system;
+        this.streamingGenerator = new StreamingGenerator(model, tokenizer);
+        this.maxLength = maxLength;
+        this.requestedMaxLength = maxLength;
+        this.policy = policy;
+        this.pinnedMessages = pinnedMessages;
+    }
+
+    /**
+     * Uses the cache for the answers of the model with the given id.
+     *
+     * @param cache the answers already given, null to always generate
+     * @param modelId what tells this model apart from the others (e.g. the name of its file)
+     */
+    public synchronized void setResponseCache(ResponseCache cache, String modelId) {
+        this.cache = cache;
+        this.modelId = modelId;
+    }
+
+    /**
+     * Uses another max_length (prompt + answer) from the next generation: a shorter one keeps
+     * a smaller KV cache and fewer messages of the history. Can be called from any thread.
+     */
+    public void setMaxLength(int maxLength) {
+        requestedMaxLength = maxLength;
+    }
+
+    /**
+     * Drops the tokens of the prompt before the next generation: they are assembled again
+     * from the tokens of the messages. Can be called from any thread.
+     */
+    public void trimMemory() {
+        trimRequested = true;
+    }
+
+    /**
+     * Puts the summary in the place of the messages it covers, from the next generation.
+     * Can be called from any thread.
+     *
+     * @param summary the summary of the first messages, null to use all of them
+     */
+    public void setSummary(Summary summary) {
+        requestedSummary = summary;
+    }
+
+    /** Applies the changes asked while the previous generation was running */
+    private void applyRequests() {
+        if (requestedSummary != summary) {
+            summary = requestedSummary;
+            // the system message changes, and with it the budget of the window
+            window = null;
+            reset();
+        }
+        if (requestedMaxLength != maxLength) {
+            Log.d(TAG, "max_length " + maxLength + " -> " + requestedMaxLength);
+            maxLength = requestedMaxLength;
+            // the context window is made again, with the new budget
+            window = null;
+            reset();
+        }
+        if (trimRequested) {
+            trimRequested = false;
+            // the prefix is assembled again from the tokens of the messages
+            reset();
+        }
+    }
+
+    /**
+     * Generates the answer to the last message of the history.
+     * Blocks until the generation is over, call it from a background thread.
+     *
+     * @param history the messages of the chat, the last one is the user message to answer.
+     *                The list should not be modified while the method runs (pass a copy).
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    public int generate(List<ChatMessage> history, StreamingGenerator.TokenListener listener)
+            throws GenAIException {
+        return generate(history, null, listener);
+    }
+
+    /**
+     * Generates the answer to the last message of the history, stopping
+     * before the next token if the signal is cancelled.
+     *
+     * @param history the messages of the chat, the last one is the user message to answer
+     * @param signal stops the generation when cancelled, may be null
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    @Override
+    public synchronized int generate(List<ChatMessage> history, CancellationSignal signal,
+                                     StreamingGenerator.TokenListener listener) throws GenAIException {
+        GenerationMetrics metrics = new GenerationMetrics();
+        Trace.beginSection("encode prompt");
+        int[] input;
+        try {
+            input = encodePrompt(history);
+        } finally {
+            Trace.endSection();
+        }
+        metrics.encodeNanos = System.nanoTime() - metrics.startNanos;
+
+        String key = null;
+        if (cache != null) {
+            key = ResponseCache.key(modelId, StreamingGenerator.describeOptions(maxLength), systemWithSummary(),
+                    windowMessages(contextOf(history)));
+            ResponseCache.Answer answer = cache.get(key);
+            if (answer != null) {
+                Log.d(TAG, "Answer replayed from the " + cache);
+                return answer.replay(signal, listener);
+            }
+        }
+
+        ResponseCache.Recorder recorder = key == null ? null : new ResponseCache.Recorder(listener);
+        int generated = streamingGenerator.generate(input, maxLength, signal, metrics,
+                recorder == null ? listener : recorder);
+        MetricsRegistry.getInstance().record(metrics);
+        // a stopped answer is not the answer of the model
+        if (recorder != null && !metrics.cancelled && generated > 0) {
+            cache.put(key, recorder.toAnswer(generated));
+        }
+        return generated;
+    }
+
+    /**
+     * Generates more answers to the last message of the history in one batched run
+     * (see {@link StreamingGenerator#generateCandidates}). The prompt is assembled as for
+     * {@link #generate}, reusing the tokens of the prefix.
+     *
+     * @param history the messages of the chat, the last one is the user message to answer
+     * @param count how many answers
+     * @param signal stops the generation when cancelled, may be null
+     * @param listener receives the decoded text of every answer, token after token
+     * @return the number of generated tokens of every answer
+     */
+    @Override
+    public synchronized int[] generateCandidates(List<ChatMessage> history, int count, CancellationSignal signal,
+                                                 StreamingGenerator.CandidateListener listener) throws GenAIException {
+        GenerationMetrics metrics = new GenerationMetrics();
+        Trace.beginSection("encode prompt");
+        int[] input;
+        try {
+            input = encodePrompt(history);
+        } finally {
+            Trace.endSection();
+        }
+        metrics.encodeNanos = System.nanoTime() - metrics.startNanos;
+
+        int[] generated = streamingGenerator.generateCandidates(input, count, maxLength, signal, metrics, listener);
+        MetricsRegistry.getInstance().record(metrics);
+        return generated;
+    }
+
+    /**
+     * Compacts the oldest messages of the history, when they take most of the window or some of
+     * them do not fit in it anymore: the model summarizes them (together with the previous summary),
+     * and the summary takes their place in the prompt from the next generation. The pinned messages
+     * and the last ones are kept as they are. The messages that do not fit in the prompt of a
+     * single summary (e.g. a long history read from the disk) are summarized in more passes,
+     * every one with the summary of the previous ones.
+     * Blocks while the summary is generated, call it from a background thread.
+     *
+     * @param history the messages of the chat
+     * @param signal stops the summary when cancelled, may be null
+     * @return the new summary, null if the history is short enough or the summary was stopped
+     */
+    public synchronized Summary compact(List<ChatMessage> history, CancellationSignal signal) throws GenAIException {
+        Trace.beginSection("compact");
+        try {
+            // also tokenizes the new messages, that the next prompt reuses
+            encodePrompt(history);
+            if (window.getStart() == window.getPinnedCount()
+                    && window.getTotalTokens() < COMPACTION_THRESHOLD * window.getBudget()) {
+                return null;
+            }
+            List<ChatMessage> context = contextOf(history);
+            // the pinned messages stay in the prompt; all the others, also the ones already out of
+            // the window, go in the summary
+            int pinnedCount = window.getPinnedCount();
+            int last = context.size() - RECENT_MESSAGES;
+            if (last <= pinnedCount) return null;
+
+            long begin = System.currentTimeMillis();
+            Summary previous = summaryOf(history);
+            String text = previous != null ? previous.text : null;
+            int passes = 0;
+            for (int from = pinnedCount; from < last; passes++) {
+                int to = summaryPassEnd(context, from, last);
+                text = summarize(text, context.subList(from, to), signal);
+                if (text == null) return null;
+                from = to;
+            }
+
+            int covered = historyIndex(history, last - 1) + 1;
+            Summary compacted = new Summary(text, pinnedCount, covered, history.get(covered - 1).getMessage());
+            Log.d(TAG, "Messages " + pinnedCount + ".." + covered + " compacted in " + passes + " passes, "
+                    + (System.currentTimeMillis() - begin) + " ms, the prompt had " + prefixLength + " tokens");
+            // the prompt is assembled again, with the summary, at the next generation
+            requestedSummary = compacted;
+            return compacted;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /** The end of the messages of the context, from the given one, that fit in the prompt of one summary */
+    private int summaryPassEnd(List<ChatMessage> context, int from, int last) throws GenAIException {
+        long budget = maxLength - SUMMARY_TOKENS - SUMMARY_PROMPT_OVERHEAD;
+        long total = 0;
+        int to = from;
+        while (to < last) {
+            ChatMessage message = context.get(to);
+            ensureTokens(message);
+            total += message.getTokenCount() + window.getTurnOverhead();
+            // a message longer than the budget goes alone: summarize() tells if it is too long
+            if (total > budget && to > from) break;
+            to++;
+        }
+        return to;
+    }
+
+    /**
+     * Has the model summarize the messages, after the previous summary.
+     *
+     * @param previous the summary of the messages before them, null if none
+     * @return the new summary, null if it was stopped or the messages are too long
+     */
+    private String summarize(String previous, List<ChatMessage> messages, CancellationSignal signal)
+            throws GenAIException {
+        if (signal != null && signal.isCanceled()) return null;
+        StringBuilder prompt = new StringBuilder(PromptBuilder.USER_TAG).append(SUMMARY_INSTRUCTION);
+        if (previous != null) {
+            prompt.append("Summary of the earlier messages: ").append(previous).append("\n\n");
+        }
+        for (ChatMessage message : messages) {
+            prompt.append(message.isUser() ? "User: " : "Assistant: ").append(message.getMessage()).append('\n');
+        }
+        prompt.append(PromptBuilder.END_TAG).append(PromptBuilder.ASSISTANT_TAG);
+        int[] input = encode(prompt.toString());
+        if (input.length + SUMMARY_TOKENS > maxLength) {
+            Log.w(TAG, "Messages too long to be summarized: " + input.length + " tokens");
+            return null;
+        }
+
+        StringBuilder text = new StringBuilder();
+        streamingGenerator.generate(input, input.length + SUMMARY_TOKENS, signal, text::append);
+        if ((signal != null && signal.isCanceled()) || text.toString().trim().isEmpty()) return null;
+        return text.toString().trim();
+    }
+
+    /** The summary that applies to this history, null if none */
+    private Summary summaryOf(List<ChatMessage> history) {
+        return summary != null && summary.appliesTo(history) ? summary : null;
+    }
+
+    /**
+     * The messages of the history that go in the prompt: the pinned ones before the summary,
+     * and the ones after it. A view: the messages are not copied.
+     */
+    private List<ChatMessage> contextOf(List<ChatMessage> history) {
+        Summary applied = summaryOf(history);
+        if (applied == null) return history;
+        int pinned = applied.pinnedMessages;
+        int covered = applied.coveredMessages;
+        return new AbstractList<ChatMessage>() {
+            @Override
+            public ChatMessage get(int index) {
+                return history.get(index < pinned ? index : index - pinned + covered);
+            }
+
+            @Override
+            public int size() {
+                return history.size() - covered + pinned;
+            }
+        };
+    }
+
+    /** The index in the history of a message of its context (see {@link #contextOf}) */
+    private int historyIndex(List<ChatMessage> history, int contextIndex) {
+        Summary applied = summaryOf(history);
+        if (applied == null || contextIndex < applied.pinnedMessages) return contextIndex;
+        return contextIndex - applied.pinnedMessages + applied.coveredMessages;
+    }
+
+    /** The system message, with the summary of the first messages if there is one */
+    private String systemWithSummary() {
+        return PromptBuilder.systemMessage(system, summary == null ? null : summary.text);
+    }
+
+    /** The messages of the history in the context window (after {@link #encodePrompt}) */
+    private List<ChatMessage> windowMessages(List<ChatMessage> history) {
+        List<ChatMessage> messages = new ArrayList<>(history.subList(0, window.getPinnedCount()));
+        messages.addAll(history.subList(window.getStart(), history.size()));
+        return messages;
+    }
+
+    /** Brings the prefix up to date with the history, and returns the input of the model */
+    private int[] encodePrompt(List<ChatMessage> fullHistory) throws GenAIException {
+        applyRequests();
+        prepareTemplate();
+        // the messages covered by the summary are not in the prompt
+        List<ChatMessage> history = contextOf(fullHistory);
+
+        if (!isContinuationOf(history)) {
+            // the history changed under our feet: start again
+            reset();
+        }
+
+        if (committedCount == 0 && window.getEnd() == 0) {
+            window.startAt(history, firstFitting(history));
+        }
+        // only the messages in the window are looked at: the new ones, and the ones that
+        // may be dropped (read again from the disk, they can miss their tokens)
+        for (int i = window.getStart(); i < history.size(); i++) {
+            ensureTokens(history.get(i));
+        }
+        window.update(history);
+
+        if (prefixLength == 0 || window.getStart() != prefixStart) {
+            // the beginning of the window moved: assemble the prefix again
+            fullPrefills++;
+            prefixLength = 0;
+            appendToPrefix(systemTokens);
+            for (int i = 0; i < window.getPinnedCount(); i++) {
+                appendTurn(history.get(i));
+            }
+            for (int i = window.getStart(); i < history.size(); i++) {
+                appendTurn(history.get(i));
+            }
+            prefixStart = window.getStart();
+        } else {
+            reusedPrefixes++;
+            for (int i = committedCount; i < history.size(); i++) {
+                appendTurn(history.get(i));
+            }
+        }
+        committedCount = history.size();
+        if (!history.isEmpty()) {
+            ChatMessage last = history.get(history.size() - 1);
+            lastCommittedText = last.getMessage();
+            lastCommittedUser = last.isUser();
+        }
+
+        Log.d(TAG, "Prompt of " + prefixLength + " tokens, messages " + window.getStart() + ".." + history.size()
+                + " (full prefills: " + fullPrefills + ", reused prefixes: " + reusedPrefixes + ")");
+
+        int[] input = Arrays.copyOf(prefix, prefixLength + assistantTag.length);
+        System.arraycopy(assistantTag, 0, input, prefixLength, assistantTag.length);
+        return input;
+    }
+
+    /** Forgets the cached prefix. The next generation will assemble the whole prompt again.
+     * Call it when the messages already sent to the model are edited. */
+    public synchronized void reset() {
+        prefix = new int[0];
+        prefixLength = 0;
+        prefixStart = -1;
+        committedCount = 0;
+        lastCommittedText = null;
+        if (window != null) window.reset();
+    }
+
+    public synchronized int getFullPrefills() {
+        return fullPrefills;
+    }
+
+    public synchronized int getReusedPrefixes() {
+        return reusedPrefixes;
+    }
+
+    /** True if the history contains, at the same place, the messages already processed.
+     * Only the last processed message is checked, so the check does not depend on the length of the chat. */
+    private boolean isContinuationOf(List<ChatMessage> history) {
+        if (committedCount == 0) return true;
+        if (history.size() < committedCount) return false;
+        ChatMessage message = history.get(committedCount - 1);
+        return message.isUser() == lastCommittedUser && message.getMessage().equals(lastCommittedText);
+    }
+
+    /**
+     * Index of the oldest message that fits in the window with all the ones after it,
+     * walking back from the end of the history: the older messages are not tokenized.
+     * The pinned messages are tokenized, they are always in the window.
+     */
+    private int firstFitting(List<ChatMessage> history) throws GenAIException {
+        int pinnedCount = policy == ContextWindow.Policy.PIN_FIRST ? Math.min(pinnedMessages, history.size()) : 0;
+        long total = 0;
+        for (int i = 0; i < pinnedCount; i++) {
+            ChatMessage message = history.get(i);
+            ensureTokens(message);
+            total += message.getTokenCount() + window.getTurnOverhead();
+        }
+        int first = history.size();
+        while (first > pinnedCount) {
+            ChatMessage message = history.get(first - 1);
+            ensureTokens(message);
+            total += message.getTokenCount() + window.getTurnOverhead();
+            // the last message is always kept
+            if (total > window.getBudget() && first < history.size()) break;
+            first--;
+        }
+        return first;
+    }
+
+    /** Tokenizes the parts of the chat template, once */
+    private void prepareTemplate() throws GenAIException {
+        if (window != null) return;
+
+        leadingTokens = encode("");
+        systemTokens = encode(PromptBuilder.systemTurn(systemWithSummary()));
+        userTag = encodeSegment(PromptBuilder.USER_TAG);
+        assistantTag = encodeSegment(PromptBuilder.ASSISTANT_TAG);
+        endTag = encodeSegment(PromptBuilder.END_TAG);
+
+        int turnOverhead = Math.max(userTag.length, assistantTag.length) + endTag.length;
+        int budget = maxLength - systemTokens.length - assistantTag.length - DEFAULT_RESERVED_ANSWER_TOKENS;
+        window = new ContextWindow(budget, policy, pinnedMessages, turnOverhead);
+    }
+
+    /** Tokenizes the message, if it was not done before */
+    private void ensureTokens(ChatMessage message) throws GenAIException {
+        if (message.getTokenIds() == null) {
+            message.setTokenIds(encodeSegment(message.getMessage()));
+        }
+    }
+
+    private void appendTurn(ChatMessage message) throws GenAIException {
+        // a message read again from the disk has lost its tokens
+        ensureTokens(message);
+        appendToPrefix(message.isUser() ? userTag : assistantTag);
+        appendToPrefix(message.getTokenIds());
+        appendToPrefix(endTag);
+    }
+
+    /** Encodes a piece of the prompt, removing the leading tokens (BOS),
+     * so that the concatenation of the pieces looks like the encoding of the whole prompt.
+     * */
+    private int[] encodeSegment(String text) throws GenAIException {
+        int[] tokens = encode(text);
+        if (tokens.length >= leadingTokens.length
+                && Arrays.equals(Arrays.copyOf(tokens, leadingTokens.length), leadingTokens)) {
+            return Arrays.copyOfRange(tokens, leadingTokens.length, tokens.length);
+        }
+        return tokens;
+    }
+
+    private int[] encode(String text) throws GenAIException {
+        Sequences sequences = null;
+        try {
+            sequences = tokenizer.encode(text);
+            return sequences.getSequence(0);
+        } finally {
+            if (sequences != null) sequences.close();
+        }
+    }
+
+    private void appendToPrefix(int[] tokens) {
+        if (prefixLength + tokens.length > prefix.length) {
+            prefix = Arrays.copyOf(prefix, Math.max(prefix.length * 2, prefixLength + tokens.length));
+        }
+        System.arraycopy(tokens, 0, prefix, prefixLength, tokens.length);
+        prefixLength += tokens.length;
+    }
+}
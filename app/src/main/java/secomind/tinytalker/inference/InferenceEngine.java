@@ -0,0 +1,776 @@
+package secomind.tinytalker.inference;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ai.onnxruntime.genai.GenAIException;
+import secomind.tinytalker.messaging.ChatMessage;
+import secomind.tinytalker.messaging.Conversation;
+import secomind.tinytalker.messaging.StreamingMessageUpdater;
+import secomind.tinytalker.utilities.ModelImporter;
+import secomind.tinytalker.utilities.ModelRegistry;
+
+/**
+ * The InferenceEngine lives as long as the process, not as long as an Activity.
+ * It owns the model (through the {@link ModelLoader}), its tokenizer, the
+ * {@link GenerationSession} and the messages of the conversation, so that when the
+ * Activity is recreated (e.g. the phone is rotated) nothing has to be loaded again,
+ * and an answer being generated keeps going.
+ *
+ * Activities acquire the engine in onCreate and release it in onDestroy. When nobody
+ * holds it anymore the engine waits a few seconds before closing the model, since
+ * during a configuration change the old Activity releases it before the new one acquires it.
+ *
+ * Activities also attach a {@link Listener} while they are visible, to follow the
+ * state of the model and the text being streamed. Everything here runs on the UI thread,
+ * except the generations, which run one after the other on the {@link InferenceScheduler}.
+ *
+ * A message can be answered with more alternative answers ({@link #setCandidateCount}),
+ * generated together in one batched run. The first one is streamed; when they are all done
+ * the user can pick one of them (see {@link ChatMessage#selectVariant}). The choice is kept,
+ * and the answer saved, when the next message is sent.
+ *
+ * A {@link MemoryGovernor} follows the memory of the phone: when it is short, the generations
+ * use a shorter max_length and the caches are dropped; in the end the model itself is closed.
+ * For the UI the model stays READY: it is loaded again when the next message is sent,
+ * and the answer waits for it.
+ *
+ * Long conversations can be compacted ({@link #setCompaction}): when nothing happened for a
+ * while after an answer, the oldest messages are summarized on the inference thread
+ * (see {@link GenerationSession#compact}), and the summary takes their place in the prompt.
+ * The messages stay in the chat as they are. A new message stops the summary being written.
+ *
+ * A model can also be imported from the storage of the phone ({@link #importModel}):
+ * the model in use is freed, the files are copied and verified, then the model imported is loaded.
+ *
+ * Usage example:
+ * <pre>
+ * engine = InferenceEngine.acquire(this, system);
+ * engine.loadModel();
+ * engine.attach(listener);
+ * ...
+ * engine.detach(listener);
+ * engine.release();
+ * </pre>
+ */
+public class InferenceEngine {
+
+    private static final String TAG = "secomind.tinytalker.InferenceEngine";
+
+    // how long the model stays in memory after the last release
+    private static final long CLOSE_DELAY_MS = 5000;
+    // where the metrics of the generations are appended
+    private static final String METRICS_FILE = "metrics.csv";
+    // where the conversations are saved, and the one that is used
+    private static final String CONVERSATIONS_DIRECTORY = "conversations";
+    private static final String CONVERSATION_NAME = "default";
+    // where the answers already given are saved
+    private static final String RESPONSE_CACHE_FILE = "responses.cache";
+    // the most answers generated together: every one is a row of the batch, with its own KV cache
+    public static final int MAX_CANDIDATES = 4;
+    // how long after the last answer the conversation is compacted, if nothing else happens
+    private static final long COMPACTION_DELAY_MS = 3000;
+
+    /** Receives what happens in the engine. Called on the UI thread. */
+    public interface Listener extends ModelLoader.Listener {
+        /** New text (delta) was appended to the message at the given position */
+        void onMessageUpdated(ChatMessage message, int position, String delta);
+
+        /** The answer at the given position is complete */
+        void onGenerationFinished(int position);
+
+        /** The messages saved on the disk were read: they are in the list of messages now */
+        void onConversationOpened();
+
+        /** The saved conversation cannot be opened: no message can be sent (it is tried again at the next acquire) */
+        void onConversationFailed(String error);
+    }
+
+    /** Follows an import of a model. Called on the UI thread. */
+    public interface ImportListener {
+        void onImportProgress(long bytesCopied, long bytesTotal);
+
+        /** The import is over: model is the one imported, null if it failed (see the logs) */
+        void onImportFinished(ModelRegistry.Entry model);
+    }
+
+    private static InferenceEngine instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable closeRunnable = this::closeIfUnused;
+    private final Runnable compactRunnable = this::compact;
+
+    // messages exchanged between the user and the model, saved on the disk (opened in the background)
+    private Conversation conversation;
+    // the saved conversation could not be opened
+    private boolean conversationFailed = false;
+    private final String system;
+
+    private int references = 0;
+    private Listener listener;
+    private ModelLoader modelLoader;
+    // the models that can be used, and the one loaded (or being loaded)
+    private final ModelRegistry registry;
+    private ModelRegistry.Entry currentModel;
+    // how to run the model on this device
+    private ModelTuner modelTuner;
+    // answers the messages: the model, or a fake one in the benchmarks
+    private Responder responder;
+    // the only thread that uses the model to generate
+    private final InferenceScheduler scheduler = new InferenceScheduler();
+    // answers being generated or waiting in the queue
+    private int pendingAnswers = 0;
+    // how many answers are generated for every message
+    private int candidateCount = 1;
+    // the last answer, when the user can still choose one of its variants (not saved yet)
+    private ChatMessage pendingChoice;
+    // the answers already given, shared by the sessions of the process
+    private final ResponseCache responseCache;
+    // gives memory back to the system when it is short
+    private final MemoryGovernor memoryGovernor;
+    // the model was closed to free memory, it is loaded again at the next message
+    private boolean unloadedForMemory = false;
+    // the model is closed to free memory as soon as the answers being generated are over
+    private boolean unloadWhenIdle = false;
+    // answers waiting for the model to be loaded again
+    private final List<DeferredAnswer> deferredAnswers = new ArrayList<>();
+    // files of a model are being imported: nothing is loaded until they are there
+    private boolean importing = false;
+    // the oldest messages are summarized when the app is idle (chosen by the user)
+    private boolean compactionEnabled = false;
+    // the summary being written, null if none
+    private CancellationSignal compaction;
+    // the last summary of the conversation, given to the sessions of the models loaded later
+    private GenerationSession.Summary summary;
+
+    /** An answer whose generation is queued when the model is ready */
+    private static final class DeferredAnswer {
+        final Runnable submit;
+        final StreamingMessageUpdater updater;
+
+        DeferredAnswer(Runnable submit, StreamingMessageUpdater updater) {
+            this.submit = submit;
+            this.updater = updater;
+        }
+    }
+
+    private InferenceEngine(Context context, String system) {
+        this.context = context.getApplicationContext();
+        this.system = system;
+        // in the external files the log can be taken with adb, without root
+        File metricsDirectory = this.context.getExternalFilesDir(null);
+        if (metricsDirectory == null) metricsDirectory = this.context.getFilesDir();
+        MetricsRegistry.getInstance().setLogFile(new File(metricsDirectory, METRICS_FILE));
+        // the files are opened in the background, the messages are read when they are displayed
+        conversation = openConversation();
+        // read from the disk the first time it is used, on the generation thread
+        responseCache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES,
+                new File(this.context.getFilesDir(), RESPONSE_CACHE_FILE));
+        MetricsRegistry.getInstance().setResponseCache(responseCache);
+        try {
+            registry = ModelRegistry.load(this.context);
+        } catch (IOException e) {
+            // the manifest is in the assets of the app: it is a bug
+            throw new IllegalStateException("Unable to read the models of the app", e);
+        }
+        memoryGovernor = new MemoryGovernor(this.context, this::onMemoryLevelChanged);
+        this.context.registerComponentCallbacks(memoryGovernor);
+    }
+
+    /**
+     * Returns the engine, creating it if needed, and counts one more user of it.
+     * Every call must be matched by a call to {@link #release()}.
+     */
+    @MainThread
+    public static InferenceEngine acquire(Context context, String system) {
+        if (instance == null) {
+            instance = new InferenceEngine(context, system);
+        } else if (instance.conversationFailed) {
+            // nothing was written in it, the saved messages are still there
+            instance.conversation.close();
+            instance.conversation = instance.openConversation();
+            instance.conversationFailed = false;
+        }
+        instance.references++;
+        instance.mainHandler.removeCallbacks(instance.closeRunnable);
+        return instance;
+    }
+
+    /** One user less. When nobody uses the engine, it is closed after a short delay. */
+    @MainThread
+    public void release() {
+        if (references == 0) return;
+        references--;
+        if (references == 0) {
+            mainHandler.postDelayed(closeRunnable, CLOSE_DELAY_MS);
+        }
+    }
+
+    /** Opens the saved conversation in the background: the listener is told when it is open, or if it fails */
+    private Conversation openConversation() {
+        return Conversation.open(new File(context.getFilesDir(), CONVERSATIONS_DIRECTORY), CONVERSATION_NAME,
+                new Conversation.OpenListener() {
+                    @Override
+                    public void onOpened(Conversation opened) {
+                        // replaced (or closed) in the meantime
+                        if (opened != conversation || instance != InferenceEngine.this) return;
+                        if (listener != null) listener.onConversationOpened();
+                    }
+
+                    @Override
+                    public void onOpenFailed(Conversation failed, IOException e) {
+                        if (failed != conversation || instance != InferenceEngine.this) return;
+                        conversationFailed = true;
+                        if (listener != null) listener.onConversationFailed(e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Starts loading the model chosen by the user (see {@link #switchModel}),
+     * if it is not already loaded or being loaded. If the previous attempt failed, it tries again.
+     * The model is downloaded if needed, in its own directory.
+     */
+    @MainThread
+    public void loadModel() {
+        if (responder instanceof FakeResponder || importing) return;
+        if (modelLoader != null && modelLoader.getState() != ModelLoader.State.FAILED) return;
+
+        ModelRegistry.Entry model = registry.getSelected();
+        currentModel = model;
+        MetricsRegistry.getInstance().setModelName(model.getModelFileName());
+
+        modelTuner = new ModelTuner(context, registry.getDirectory(model), model.id);
+        modelLoader = new ModelLoader(registry, model, modelTuner, new ModelLoader.Listener() {
+            @Override
+            public void onStateChanged(ModelLoader.State state) {
+                // a model that was replaced by another one, or closed in the meantime
+                if (currentModel != model || modelLoader == null) return;
+                if (state == ModelLoader.State.READY) {
+                    GenerationSession session = new GenerationSession(modelLoader.getModel(), modelLoader.getTokenizer(), system);
+                    // another variant, or the same with other threads, does not give the same answers
+                    String variant = describeVariant(model, modelLoader.getConfiguration());
+                    MetricsRegistry.getInstance().setModelName(variant);
+                    session.setResponseCache(responseCache, variant);
+                    session.setMaxLength(memoryGovernor.getLevel().maxLength);
+                    session.setSummary(summary);
+                    responder = session;
+                    if (unloadedForMemory) memoryGovernor.onModelReloaded();
+                }
+                if (state == ModelLoader.State.READY || state == ModelLoader.State.FAILED) {
+                    // the reload after an unload is over: from now on the UI sees the real state
+                    unloadedForMemory = false;
+                }
+                if (listener != null) listener.onStateChanged(state);
+                if (state == ModelLoader.State.READY || state == ModelLoader.State.FAILED) {
+                    runDeferredAnswers();
+                }
+            }
+
+            @Override
+            public void onDownloadProgress(long bytesRead, long bytesTotal) {
+                if (currentModel == model && listener != null) listener.onDownloadProgress(bytesRead, bytesTotal);
+            }
+        });
+        modelLoader.start();
+    }
+
+    /** The model as it is run: its file and, if it was tuned, the variant and the threads */
+    private static String describeVariant(ModelRegistry.Entry model, ModelTuner.Configuration configuration) {
+        return configuration == null ? model.getModelFileName() : model.getModelFileName() + " (" + configuration + ")";
+    }
+
+    /** The models that can be used */
+    public List<ModelRegistry.Entry> getModels() {
+        return registry.getModels();
+    }
+
+    /** The model in use, or the one that will be loaded */
+    public ModelRegistry.Entry getCurrentModel() {
+        return currentModel != null ? currentModel : registry.getSelected();
+    }
+
+    /** True if the model is on the device, and does not need to be downloaded (at least not all of it) */
+    public boolean isOnDevice(ModelRegistry.Entry model) {
+        return registry.isOnDevice(model);
+    }
+
+    /**
+     * Uses another model: the one in use is freed before the new one is loaded,
+     * so that the two are never in memory at the same time. The choice is remembered.
+     * Nothing happens while the model is being loaded or is answering.
+     *
+     * @return false if the model is busy
+     */
+    @MainThread
+    public boolean switchModel(ModelRegistry.Entry model) {
+        if (isBusy()) return false;
+        if (model == currentModel && modelLoader != null && modelLoader.getState() == ModelLoader.State.READY) return true;
+
+        registry.select(model);
+        unloadModel();
+        loadModel();
+        return true;
+    }
+
+    /**
+     * Imports a model from files chosen by the user (see {@link ModelImporter}), then loads it.
+     * The model in use is freed first: the import may replace its files.
+     * If the import fails, the model in use is loaded again.
+     * Nothing happens while the model is being loaded or is answering.
+     *
+     * @param uris a folder, or some files, chosen with the Storage Access Framework
+     * @return false if the model is busy
+     */
+    @MainThread
+    public boolean importModel(List<Uri> uris, ImportListener importListener) {
+        if (isBusy()) return false;
+        unloadModel();
+        importing = true;
+        ModelImporter importer = new ModelImporter(context.getContentResolver(), registry);
+        new Thread(() -> {
+            ModelRegistry.Entry model = null;
+            try {
+                model = importer.importModel(uris, (bytesCopied, bytesTotal) ->
+                        mainHandler.post(() -> importListener.onImportProgress(bytesCopied, bytesTotal)));
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Unable to import the model: " + e.getMessage());
+            }
+            ModelRegistry.Entry imported = model;
+            mainHandler.post(() -> {
+                importing = false;
+                // the engine was closed in the meantime
+                if (instance != this) return;
+                if (imported != null) registry.select(imported);
+                loadModel();
+                importListener.onImportFinished(imported);
+            });
+        }, "model import").start();
+        return true;
+    }
+
+    /** True if the model cannot be replaced now: it is answering, compacting, being loaded or imported */
+    private boolean isBusy() {
+        if (responder instanceof FakeResponder || isGenerating() || importing || compaction != null) return true;
+        if (modelLoader == null) return false;
+        ModelLoader.State state = modelLoader.getState();
+        return state != ModelLoader.State.READY && state != ModelLoader.State.FAILED;
+    }
+
+    /**
+     * Forgets how the model was tuned, and loads it again: the configurations are measured again.
+     * Nothing happens while the model is being loaded, is answering or is summarizing the conversation.
+     *
+     * @return false if the model is busy
+     */
+    @MainThread
+    public boolean retuneModel() {
+        // a summary being generated still uses the model that would be freed
+        if (modelLoader == null || isBusy()) return false;
+
+        modelTuner.clear();
+        unloadModel();
+        loadModel();
+        return true;
+    }
+
+    /** The app is visible: the model stays loaded even if it went in the background a moment ago */
+    @MainThread
+    public void onForeground() {
+        memoryGovernor.onForeground();
+    }
+
+    /** Follows the memory of the phone, giving back as much as the level asks */
+    @MainThread
+    private void onMemoryLevelChanged(MemoryGovernor.Level level) {
+        if (responder instanceof GenerationSession) {
+            GenerationSession session = (GenerationSession) responder;
+            session.setMaxLength(level.maxLength);
+            if (level.compareTo(MemoryGovernor.Level.MINIMAL) >= 0) session.trimMemory();
+        }
+        if (level.compareTo(MemoryGovernor.Level.REDUCED) >= 0) conversation.trimMemory();
+        if (level.compareTo(MemoryGovernor.Level.MINIMAL) >= 0) responseCache.trimMemory();
+        if (level == MemoryGovernor.Level.UNLOADED) unloadForMemory();
+    }
+
+    /**
+     * Closes the model and its tokenizer to free their memory. The UI still sees it READY:
+     * it is loaded again at the next message. If an answer is being generated, it is done after it.
+     */
+    @MainThread
+    private void unloadForMemory() {
+        if (!(responder instanceof GenerationSession)) return;
+        if (isGenerating() || compaction != null) {
+            unloadWhenIdle = true;
+            return;
+        }
+        unloadWhenIdle = false;
+        Log.d(TAG, "Closing the model to free memory, it will be loaded again at the next message");
+        unloadModel();
+        unloadedForMemory = true;
+    }
+
+    /** The model is loaded again (or it failed): the answers that waited for it are queued */
+    private void runDeferredAnswers() {
+        List<DeferredAnswer> answers = new ArrayList<>(deferredAnswers);
+        deferredAnswers.clear();
+        for (DeferredAnswer answer : answers) {
+            if (responder != null) {
+                answer.submit.run();
+            } else {
+                // nothing can answer: the message stays empty
+                answer.updater.finish();
+            }
+        }
+    }
+
+    /** Frees the model, when nothing is being generated nor loaded */
+    private void unloadModel() {
+        responder = null;
+        if (modelLoader != null) {
+            // nothing is using it: the model is freed right away
+            modelLoader.close();
+            modelLoader = null;
+        }
+    }
+
+    /**
+     * Answers with a {@link FakeResponder} instead of the model, which is never loaded.
+     * The saved conversation is replaced by a fake one, that is not saved.
+     * Used by the benchmarks: call it before {@link #loadModel}.
+     *
+     * @param tokens how many words every answer has
+     * @param history how many messages the fake conversation starts with
+     */
+    @MainThread
+    public void useFakeModel(int tokens, int history) {
+        if (modelLoader != null || responder instanceof FakeResponder) return;
+        responder = new FakeResponder(tokens);
+        MetricsRegistry.getInstance().setModelName("fake");
+        conversation.close();
+        conversation = Conversation.inMemory();
+        conversation.addAll(FakeResponder.fakeHistory(history));
+    }
+
+    /** Starts receiving the events of the engine; the current state is delivered right away */
+    @MainThread
+    public void attach(Listener listener) {
+        this.listener = listener;
+        ModelLoader.State state = getState();
+        if (state != null) listener.onStateChanged(state);
+        if (conversationFailed) listener.onConversationFailed("the conversation could not be opened");
+    }
+
+    @MainThread
+    public void detach(Listener listener) {
+        if (this.listener == listener) this.listener = null;
+    }
+
+    /**
+     * The state of the model, null if loadModel was never called.
+     * A model closed to free memory is READY until it is loaded again, and FAILED if that fails.
+     */
+    public ModelLoader.State getState() {
+        if (responder instanceof FakeResponder || unloadedForMemory) return ModelLoader.State.READY;
+        return modelLoader == null ? null : modelLoader.getState();
+    }
+
+    /**
+     * The messages of the conversation. Only the UI thread can read or change them.
+     * The list is empty until the saved conversation is open (see {@link Listener#onConversationOpened}).
+     */
+    public List<ChatMessage> getChatMessages() {
+        return conversation;
+    }
+
+    /** True if the saved messages were read, and new messages can be sent */
+    public boolean isConversationOpen() {
+        return conversation.isOpen();
+    }
+
+    /**
+     * Searches the messages of the conversation that contain all the words of the query.
+     * The search runs in the background, the listener receives the positions of the messages.
+     */
+    @MainThread
+    public void searchMessages(String query, Conversation.SearchListener listener) {
+        conversation.search(query, listener);
+    }
+
+    /**
+     * How many alternative answers are generated for the next messages, together in one run.
+     *
+     * @param count between 1 (one answer, as usual) and {@link #MAX_CANDIDATES}
+     */
+    @MainThread
+    public void setCandidateCount(int count) {
+        candidateCount = Math.max(1, Math.min(count, MAX_CANDIDATES));
+    }
+
+    public int getCandidateCount() {
+        return candidateCount;
+    }
+
+    /** Summarizes the oldest messages of long conversations when the app is idle, or stops doing it */
+    @MainThread
+    public void setCompaction(boolean enabled) {
+        compactionEnabled = enabled;
+        if (enabled) {
+            scheduleCompaction();
+        } else {
+            mainHandler.removeCallbacks(compactRunnable);
+        }
+    }
+
+    public boolean isCompactionEnabled() {
+        return compactionEnabled;
+    }
+
+    /** Compacts the conversation in a while, unless something else happens before */
+    private void scheduleCompaction() {
+        mainHandler.removeCallbacks(compactRunnable);
+        if (compactionEnabled) mainHandler.postDelayed(compactRunnable, COMPACTION_DELAY_MS);
+    }
+
+    /**
+     * Queues the summary of the oldest messages on the inference thread, if nothing is being
+     * generated. The session decides if the conversation is long enough to need it.
+     */
+    @MainThread
+    private void compact() {
+        if (!compactionEnabled || isGenerating() || compaction != null || unloadWhenIdle) return;
+        if (!(responder instanceof GenerationSession) || !conversation.isOpen()) return;
+        GenerationSession session = (GenerationSession) responder;
+        List<ChatMessage> history = conversation.snapshot();
+        compaction = scheduler.submit(cancellation -> {
+            GenerationSession.Summary compacted = null;
+            try {
+                if (!cancellation.isCanceled()) compacted = session.compact(history, cancellation);
+            } catch (GenAIException e) {
+                Log.e(TAG, "Unable to compact the conversation: " + e.getMessage());
+            }
+            GenerationSession.Summary result = compacted;
+            mainHandler.post(() -> onCompactionFinished(result));
+        });
+    }
+
+    private void onCompactionFinished(GenerationSession.Summary compacted) {
+        compaction = null;
+        // the engine was closed in the meantime
+        if (instance != this) return;
+        if (compacted != null) summary = compacted;
+        // the memory was short while we were busy
+        if (unloadWhenIdle && !isGenerating()) unloadForMemory();
+        if (references == 0 && !isGenerating()) {
+            mainHandler.postDelayed(closeRunnable, CLOSE_DELAY_MS);
+        }
+    }
+
+    /** True if an answer is being generated, or is waiting to be generated */
+    public boolean isGenerating() {
+        return pendingAnswers > 0;
+    }
+
+    /**
+     * Adds the message of the user, and an empty message for the answer, to the conversation,
+     * then queues the generation of the answer. The answers are generated in the same order
+     * as the messages. The listener is told when the text of the answer changes.
+     *
+     * @return false if the model or the conversation is not ready, or too many messages are waiting for an answer
+     */
+    @MainThread
+    public boolean sendMessage(String message) {
+        if (!conversation.isOpen()) return false;
+        // only the UI thread submits: if there is room now, the submit below succeeds
+        if (responder == null && !unloadedForMemory) return false;
+        if (scheduler.isFull() || deferredAnswers.size() >= InferenceScheduler.DEFAULT_QUEUE_CAPACITY) return false;
+        // a long prompt on a phone short of memory may be what gets the app killed
+        memoryGovernor.check();
+
+        // the answer before this message cannot change anymore
+        keepPendingChoice();
+        // the user is waiting: the summary is written another time
+        mainHandler.removeCallbacks(compactRunnable);
+        if (compaction != null) compaction.cancel();
+
+        ChatMessage question = new ChatMessage(message, true);
+        conversation.add(question);
+        // the history seen by the generation thread, it does not change when other messages are added.
+        // The answers still in the queue are in it too, they are complete when this one runs
+        List<ChatMessage> history = conversation.snapshot();
+
+        // empty message of the model, it will be filled while the answer is streamed
+        ChatMessage answer = new ChatMessage("", false);
+        conversation.addStreaming(answer);
+        int answerPosition = conversation.size() - 1;
+        pendingAnswers++;
+
+        // the first answer is streamed in the message, the others are collected here
+        int count = candidateCount;
+        StringBuilder[] others = new StringBuilder[count - 1];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = new StringBuilder();
+        }
+
+        StreamingMessageUpdater updater = new StreamingMessageUpdater(answer, answerPosition,
+                new StreamingMessageUpdater.Listener() {
+                    @Override
+                    public void onMessageUpdated(int position, String delta) {
+                        if (listener != null) listener.onMessageUpdated(answer, position, delta);
+                    }
+
+                    @Override
+                    public void onStreamFinished(int position) {
+                        pendingAnswers--;
+                        if (count > 1 && position == conversation.size() - 1) {
+                            // the user chooses one of the answers, it is saved with the next message.
+                            // The generation thread wrote the others before finishing the updater
+                            String[] variants = new String[count];
+                            variants[0] = answer.getMessage();
+                            for (int i = 1; i < count; i++) {
+                                variants[i] = others[i - 1].toString();
+                            }
+                            answer.setVariants(variants);
+                            pendingChoice = answer;
+                        } else {
+                            // the text will not change anymore, it is saved
+                            // (the next message is already answered from the first answer)
+                            conversation.complete(answer);
+                        }
+                        if (listener != null) listener.onGenerationFinished(position);
+                        // the memory was short while we were busy
+                        if (unloadWhenIdle && pendingAnswers == 0) unloadForMemory();
+                        // somebody may have released the engine while we were busy
+                        if (references == 0 && pendingAnswers == 0) {
+                            mainHandler.postDelayed(closeRunnable, CLOSE_DELAY_MS);
+                        }
+                        if (pendingAnswers == 0) scheduleCompaction();
+                    }
+                });
+
+        // the generation is queued when the model is there: it may have been unloaded to free memory
+        Runnable submit = () -> {
+            Responder generationResponder = responder;
+            CancellationSignal signal = scheduler.submit(cancellation -> {
+                try {
+                    // stopped while it was waiting in the queue: the answer stays empty
+                    if (cancellation.isCanceled()) return;
+                    long begin = System.currentTimeMillis();
+                    int tokens;
+                    if (count > 1) {
+                        int[] generated = generationResponder.generateCandidates(history, count, cancellation,
+                                (candidate, delta) -> {
+                                    if (candidate == 0) {
+                                        updater.append(delta);
+                                    } else {
+                                        others[candidate - 1].append(delta);
+                                    }
+                                });
+                        tokens = 0;
+                        for (int candidateTokens : generated) {
+                            tokens += candidateTokens;
+                        }
+                    } else {
+                        tokens = generationResponder.generate(history, cancellation, updater::append);
+                    }
+                    long duration = System.currentTimeMillis() - begin;
+                    Log.d(TAG, "Generated " + tokens + " tokens in " + duration + " ms"
+                            + (cancellation.isCanceled() ? " (stopped)" : ""));
+                } catch (GenAIException e) {
+                    Log.e(TAG, "Exception occurred during generation: " + e.getMessage());
+                } finally {
+                    updater.finish();
+                    try {
+                        // the next prompt contains this answer, it must be complete
+                        updater.awaitFlushed();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            // the scheduler was shut down: the answer stays empty
+            if (signal == null) updater.finish();
+        };
+        if (responder != null) {
+            submit.run();
+        } else {
+            deferredAnswers.add(new DeferredAnswer(submit, updater));
+            loadModel();
+        }
+        return true;
+    }
+
+    /** Saves the last answer with the variant chosen by the user, if it was waiting for the choice */
+    private void keepPendingChoice() {
+        if (pendingChoice == null) return;
+        pendingChoice.keepSelectedVariant();
+        conversation.complete(pendingChoice);
+        pendingChoice = null;
+    }
+
+    /** Stops the answer being generated (the text produced so far stays), the queued ones will follow */
+    @MainThread
+    public void stopGeneration() {
+        scheduler.cancelCurrent();
+    }
+
+    /** Stops the answer being generated and drops the ones in the queue */
+    @MainThread
+    public void stopAllGenerations() {
+        scheduler.cancelAll();
+        // the ones waiting for the model stay empty
+        for (DeferredAnswer answer : deferredAnswers) {
+            answer.updater.finish();
+        }
+        deferredAnswers.clear();
+    }
+
+    /** Frees the model and forgets the engine, if nobody acquired it in the meantime */
+    private void closeIfUnused() {
+        if (references > 0) return;
+        if (pendingAnswers > 0) return; // closed when the generations are over
+        close();
+    }
+
+    /**
+     * Frees the model and the tokenizer. The next acquire will create a new engine.
+     * The answers still being generated are stopped: call it when nobody needs them.
+     * A download or a load in progress is stopped too: the loader of the next engine
+     * waits for it to be over before it touches the files (see {@link ModelLoader}).
+     */
+    @MainThread
+    public void close() {
+        Log.d(TAG, "Closing the inference engine");
+        mainHandler.removeCallbacks(closeRunnable);
+        mainHandler.removeCallbacks(compactRunnable);
+        if (compaction != null) compaction.cancel();
+        responder = null;
+        if (modelLoader != null) {
+            // the model is freed when the last generation (if any) has stopped
+            scheduler.shutdown(modelLoader::close);
+            modelLoader = null;
+        } else {
+            scheduler.shutdown(null);
+        }
+        listener = null;
+        context.unregisterComponentCallbacks(memoryGovernor);
+        // the unload planned for the background must not reach a closed engine
+        memoryGovernor.onForeground();
+        deferredAnswers.clear();
+        keepPendingChoice();
+        conversation.close();
+        if (instance == this) instance = null;
+    }
+}
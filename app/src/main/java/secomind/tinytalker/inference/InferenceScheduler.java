@@ -0,0 +1,149 @@
+package secomind.tinytalker.inference;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work on the model (the generations) on a single background thread,
+ * one request after the other, in the order they were submitted.
+ *
+ * A Model should not be used by two generators at the same time: they would compete
+ * for the same cores and the same memory, and both answers would be slower.
+ * Here there is only one worker, and the requests wait in a bounded queue.
+ * When the queue is full, new requests are refused (see {@link #submit}).
+ *
+ * Every request has its own CancellationSignal. The cancellation is cooperative:
+ * the decode loop checks the signal between two tokens (see {@link StreamingGenerator}),
+ * so a request stops right after the token being computed.
+ *
+ * Usage example:
+ * <pre>
+ * InferenceScheduler scheduler = new InferenceScheduler();
+ * scheduler.submit(signal -&gt; session.generate(history, signal, listener));
+ * ...
+ * scheduler.cancelAll(); // e.g. the "stop" button
+ * </pre>
+ */
+public class InferenceScheduler {
+
+    private static final String TAG = "secomind.tinytalker.InferenceScheduler";
+
+    // requests that can wait while another one is running
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    /** A piece of work for the model. Runs on the worker thread. */
+    public interface Task {
+        /**
+         * @param signal cancelled when the request must stop. The task is run even if it
+         *               was cancelled while waiting in the queue, so that it can clean up
+         *               (e.g. finish the message on the screen): check the signal first.
+         */
+        void run(CancellationSignal signal);
+    }
+
+    private final ThreadPoolExecutor executor;
+    // run when the worker is over, after a shutdown
+    private volatile Runnable onTerminated;
+    // the requests submitted and not finished yet, the first one is the running one (guarded by this)
+    private final List<Request> requests = new ArrayList<>();
+
+    public InferenceScheduler() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /** @param queueCapacity how many requests can wait while another one is running */
+    public InferenceScheduler(int queueCapacity) {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "inference")) {
+            @Override
+            protected void terminated() {
+                Runnable runnable = onTerminated;
+                if (runnable != null) runnable.run();
+            }
+        };
+    }
+
+    /**
+     * Queues the task after the ones already submitted.
+     *
+     * @return the signal that cancels the task, or null if the queue is full
+     * (or the scheduler was shut down)
+     */
+    public CancellationSignal submit(Task task) {
+        Request request = new Request(task);
+        synchronized (this) {
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Request refused, " + requests.size() + " requests pending");
+                return null;
+            }
+            requests.add(request);
+        }
+        return request.signal;
+    }
+
+    /** True if there is no room in the queue: the next submit would be refused */
+    public boolean isFull() {
+        return executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /** Number of requests running or waiting in the queue */
+    public synchronized int getPendingCount() {
+        return requests.size();
+    }
+
+    /** Stops the running request (at the next token), the queued ones will run after it */
+    public synchronized void cancelCurrent() {
+        if (!requests.isEmpty()) requests.get(0).signal.cancel();
+    }
+
+    /** Stops the running request and all the queued ones */
+    public synchronized void cancelAll() {
+        for (Request request : requests) {
+            request.signal.cancel();
+        }
+    }
+
+    /**
+     * Cancels everything and stops the worker once the cancelled requests are over.
+     *
+     * @param onTerminated run when no request is using the model anymore (e.g. to free it),
+     *                     on the worker thread or right away if the worker is idle. May be null
+     */
+    public void shutdown(Runnable onTerminated) {
+        this.onTerminated = onTerminated;
+        cancelAll();
+        executor.shutdown();
+    }
+
+    private class Request implements Runnable {
+        final Task task;
+        final CancellationSignal signal = new CancellationSignal();
+
+        Request(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run(signal);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Request failed: " + e.getMessage());
+            } finally {
+                synchronized (InferenceScheduler.this) {
+                    requests.remove(this);
+                }
+            }
+        }
+    }
+}
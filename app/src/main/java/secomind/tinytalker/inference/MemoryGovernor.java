@@ -0,0 +1,167 @@
+package secomind.tinytalker.inference;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+/**
+ * Decides how much memory the model can take, so that the app gives memory back when
+ * the system runs short of it, instead of being killed by the low memory killer
+ * (and starting again from scratch, download check, load and warm-up included).
+ *
+ * The model and its KV cache take a few GB, so the app goes down a level at a time:
+ * <pre>
+ * NORMAL    all the max_length of the model
+ * REDUCED   a shorter max_length (smaller KV cache, fewer messages in the context)
+ * MINIMAL   an even shorter one, and the caches are dropped (prompt tokens, pages of messages, answers)
+ * UNLOADED  the Model and the Tokenizer are closed: they are loaded again at the next message
+ * </pre>
+ * The level goes down when the system asks to trim the memory ({@link #onTrimMemory}),
+ * or when {@link #check()} finds little memory available, compared with the native heap
+ * where the model lives (a generation grows it with its KV cache). It goes back to NORMAL
+ * in {@link #check()}, when there is plenty of memory again and nothing was asked for a while.
+ *
+ * Since Android 14 the system only tells the app that its UI is hidden and that it went in
+ * the background (TRIM_MEMORY_BACKGROUND); the other levels and onLowMemory are not sent anymore.
+ * So in the background the caches are dropped right away and, if the app is still in the
+ * background after {@link #BACKGROUND_UNLOAD_DELAY_MS}, the model is unloaded: a background
+ * process that holds a few GB is the first one the low memory killer picks.
+ * {@link #onForeground()} cancels it.
+ *
+ * The listener is called on the UI thread, as the callbacks of the system.
+ */
+public class MemoryGovernor implements ComponentCallbacks2 {
+
+    private static final String TAG = "secomind.tinytalker.MemoryGovernor";
+
+    public enum Level {
+        NORMAL(StreamingGenerator.DEFAULT_MAX_LENGTH),
+        REDUCED(2048),
+        MINIMAL(1024),
+        UNLOADED(1024);
+
+        /** The max_length (prompt + answer) of the generations at this level */
+        public final int maxLength;
+
+        Level(int maxLength) {
+            this.maxLength = maxLength;
+        }
+    }
+
+    /** Receives the changes of level. Called on the UI thread. */
+    public interface Listener {
+        void onLevelChanged(Level level);
+    }
+
+    // the system is asked to be left alone for this long before the level goes up again
+    private static final long RECOVERY_DELAY_MS = 60_000;
+    // available memory, in multiples of the low memory threshold of the system
+    private static final long REDUCE_BELOW = 2;
+    private static final long RECOVER_ABOVE = 4;
+    // the memory left above the threshold, as a fraction of the native heap of the app, below
+    // which the level goes down: a generation can grow the native heap by that much
+    private static final long REDUCE_BELOW_HEAP_DIVISOR = 2;
+    private static final long MINIMAL_BELOW_HEAP_DIVISOR = 8;
+    // how long the app stays in the background before the model is unloaded
+    public static final long BACKGROUND_UNLOAD_DELAY_MS = 10_000;
+
+    private final ActivityManager activityManager;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable unloadInBackground = () -> lower(Level.UNLOADED);
+    private Level level = Level.NORMAL;
+    // when the level last went down
+    private long lastTrimMillis = 0;
+
+    public MemoryGovernor(Context context, Listener listener) {
+        this.activityManager = context.getSystemService(ActivityManager.class);
+        this.listener = listener;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Looks at the memory available, e.g. before a generation: the level goes down if it is low,
+     * and back to NORMAL if there is plenty and the system did not ask for memory in a while.
+     *
+     * @return the level after the check
+     */
+    @MainThread
+    public Level check() {
+        if (activityManager == null) return level;
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(info);
+        long nativeHeap = Debug.getNativeHeapAllocatedSize();
+        // what can still be allocated before the system starts killing processes
+        long headroom = info.availMem - info.threshold;
+        Log.d(TAG, "Available " + info.availMem / 1048576 + " MB (threshold " + info.threshold / 1048576
+                + " MB), native heap " + nativeHeap / 1048576 + " MB, level " + level);
+
+        if (info.lowMemory || headroom < nativeHeap / MINIMAL_BELOW_HEAP_DIVISOR) {
+            lower(Level.MINIMAL);
+        } else if (info.availMem < REDUCE_BELOW * info.threshold || headroom < nativeHeap / REDUCE_BELOW_HEAP_DIVISOR) {
+            lower(Level.REDUCED);
+        } else if (level != Level.NORMAL && info.availMem > RECOVER_ABOVE * info.threshold && headroom > nativeHeap
+                && SystemClock.elapsedRealtime() - lastTrimMillis > RECOVERY_DELAY_MS) {
+            setLevel(Level.NORMAL);
+        }
+        return level;
+    }
+
+    /** The model was loaded again after it was unloaded: the memory is the one of the MINIMAL level */
+    @MainThread
+    public void onModelReloaded() {
+        if (level == Level.UNLOADED) setLevel(Level.MINIMAL);
+    }
+
+    /** The app is visible again: the model is not unloaded because it went in the background */
+    @MainThread
+    public void onForeground() {
+        mainHandler.removeCallbacks(unloadInBackground);
+    }
+
+    @Override
+    public void onTrimMemory(int trimLevel) {
+        // the levels above it, sent before Android 14, are all in the background too
+        if (trimLevel >= TRIM_MEMORY_BACKGROUND) {
+            lower(Level.MINIMAL);
+            // the model is what makes us a target of the low memory killer
+            mainHandler.removeCallbacks(unloadInBackground);
+            mainHandler.postDelayed(unloadInBackground, BACKGROUND_UNLOAD_DELAY_MS);
+        }
+        // TRIM_MEMORY_UI_HIDDEN: only the UI is gone, the memory is fine
+    }
+
+    @Override
+    public void onLowMemory() {
+        // only called before Android 14
+        lower(Level.UNLOADED);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration configuration) {
+    }
+
+    /** Goes down to the level, if the current one is higher */
+    private void lower(Level to) {
+        lastTrimMillis = SystemClock.elapsedRealtime();
+        if (to.ordinal() > level.ordinal()) setLevel(to);
+    }
+
+    private void setLevel(Level to) {
+        Log.d(TAG, "Memory level " + level + " -> " + to);
+        level = to;
+        listener.onLevelChanged(to);
+    }
+}
@@ -0,0 +1,120 @@
+package secomind.tinytalker.inference;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects the numbers of the app: how long the model took to be downloaded, loaded and
+ * warmed up, and the {@link GenerationMetrics} of the last generations.
+ *
+ * If a log file is set, every generation is also appended to it as a CSV row,
+ * together with the device and the model, so that the files taken from different
+ * devices (or with different models) can be put together and compared:
+ * <pre>
+ * adb pull /sdcard/Android/data/secomind.tinytalker/files/metrics.csv
+ * </pre>
+ *
+ * There is one registry for the whole process. All the methods are thread safe.
+ */
+public class MetricsRegistry {
+
+    private static final String TAG = "secomind.tinytalker.MetricsRegistry";
+
+    // generations kept in memory
+    private static final int MAX_GENERATIONS = 100;
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final ArrayDeque<GenerationMetrics> generations = new ArrayDeque<>();
+    // phase of the startup (download, load, warm up) -> duration in ms
+    private final Map<String, Long> startup = new LinkedHashMap<>();
+    private String modelName = "";
+    private File logFile;
+    private ResponseCache responseCache;
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    /** The model in use, with the variant and the threads it runs with, written in the log to tell them apart */
+    public synchronized void setModelName(String modelName) {
+        this.modelName = modelName;
+    }
+
+    /** The CSV file where the generations are appended, null to not write them */
+    public synchronized void setLogFile(File logFile) {
+        this.logFile = logFile;
+    }
+
+    /** The cache of the answers, whose hits and misses are shown in the summary */
+    public synchronized void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /** Records the duration of a phase of the startup, e.g. "load" */
+    public synchronized void recordStartup(String phase, long millis) {
+        startup.put(phase, millis);
+        Log.d(TAG, "Startup " + phase + ": " + millis + " ms");
+    }
+
+    /** Records a completed generation, and appends it to the log file (if any) */
+    public synchronized void record(GenerationMetrics metrics) {
+        if (generations.size() == MAX_GENERATIONS) generations.removeFirst();
+        generations.addLast(metrics);
+        Log.d(TAG, metrics.toString());
+        if (logFile != null) append(metrics);
+    }
+
+    /** The last generation, null if there was none */
+    public synchronized GenerationMetrics getLast() {
+        return generations.peekLast();
+    }
+
+    /** A few lines with the startup times and the last generation, for the debug overlay */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Long> phase : startup.entrySet()) {
+            if (summary.length() > 0) summary.append(", ");
+            summary.append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+        }
+        GenerationMetrics last = generations.peekLast();
+        if (last != null) {
+            summary.append('\n').append(String.format(Locale.ROOT,
+                    "TTFT %.0f ms | prefill %.1f tok/s | decode %.1f tok/s", last.getTimeToFirstTokenMillis(),
+                    last.getPrefillTokensPerSecond(), last.getDecodeTokensPerSecond()));
+            summary.append('\n').append(String.format(Locale.ROOT,
+                    "%d + %d tokens | native heap %.0f MB", last.getPromptTokens(), last.getGeneratedTokens(),
+                    last.getPeakNativeHeapBytes() / 1048576.0));
+        }
+        if (responseCache != null && responseCache.getHitCount() + responseCache.getMissCount() > 0) {
+            summary.append('\n').append(responseCache);
+        }
+        return summary.toString();
+    }
+
+    private void append(GenerationMetrics metrics) {
+        boolean newFile = !logFile.exists() || logFile.length() == 0;
+        try (Writer writer = new FileWriter(logFile, true)) {
+            if (newFile) {
+                writer.write("device,model," + GenerationMetrics.CSV_HEADER + "\n");
+            }
+            writer.write(csvField(Build.MANUFACTURER + " " + Build.MODEL) + "," + csvField(modelName) + ","
+                    + metrics.toCsvRow() + "\n");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the metrics in " + logFile + ": " + e.getMessage());
+        }
+    }
+
+    private static String csvField(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,406 @@
+package secomind.tinytalker.inference;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import ai.onnxruntime.genai.GenAIException;
+import ai.onnxruntime.genai.Model;
+import ai.onnxruntime.genai.Sequences;
+import ai.onnxruntime.genai.Tokenizer;
+import secomind.tinytalker.utilities.ModelDownloader;
+import secomind.tinytalker.utilities.ModelRegistry;
+import secomind.tinytalker.utilities.ModelValidationCache;
+
+/**
+ * Brings the model from the disk (or from the network) to a state where it can answer,
+ * without ever blocking the UI thread.
+ *
+ * Everything happens on a background executor, going through these states:
+ * <pre>
+ * MISSING -&gt; DOWNLOADING -&gt; TUNING -&gt; LOADING -&gt; WARMING -&gt; READY
+ *                 \_____________\__________\__________\______-&gt; FAILED
+ * </pre>
+ * When the files are already there, MISSING and DOWNLOADING are skipped.
+ * TUNING happens only the first time on a device, if a {@link ModelTuner} is given:
+ * then the model is loaded with the configuration it found.
+ * During WARMING a very short generation is run, so that the weights are faulted in
+ * memory and the kernels are prepared before the first real message.
+ *
+ * The durations of the download, of the load and of the warm-up are recorded in the
+ * {@link MetricsRegistry}, and the load and the warm-up are also Trace sections.
+ *
+ * Only one model at a time is downloaded, tuned, loaded or kept in memory in the process:
+ * a loader waits, before doing anything, until the model of the previous one is freed.
+ * {@link #close()} stops the work in progress (a download is interrupted), so a loader
+ * created right after another one is closed waits only for the old one to wind down,
+ * and never writes the same files at the same time.
+ *
+ * The listener is always called on the UI thread.
+ */
+public class ModelLoader {
+
+    private static final String TAG = "secomind.tinytalker.ModelLoader";
+
+    // tokens generated by the warm-up
+    private static final int WARM_UP_TOKENS = 4;
+    private static final String WARM_UP_PROMPT = PromptBuilder.USER_TAG + "Hello" + PromptBuilder.END_TAG
+            + PromptBuilder.ASSISTANT_TAG;
+
+    // held by the loader whose model is being prepared or is in memory, from the beginning
+    // of prepare() until the model is freed
+    private static final Semaphore modelPermit = new Semaphore(1);
+
+    public enum State {
+        /** some files of the model are not on the device */
+        MISSING,
+        /** the missing files are being downloaded */
+        DOWNLOADING,
+        /** the fastest configuration for the device is being searched (only the first time) */
+        TUNING,
+        /** the model is being loaded in memory */
+        LOADING,
+        /** a short generation is run to prepare the model */
+        WARMING,
+        /** the model can be used */
+        READY,
+        /** something went wrong, see the logs */
+        FAILED
+    }
+
+    /** Receives the changes of state. Called on the UI thread. */
+    public interface Listener {
+        void onStateChanged(State state);
+
+        /** Progress of the download, only during DOWNLOADING */
+        default void onDownloadProgress(long bytesRead, long bytesTotal) {
+        }
+    }
+
+    private final File directory;
+    private final List<ModelDownloader.RemoteFile> files;
+    private final Listener listener;
+    // where the model comes from, null if the directory and the files are given directly
+    private final ModelRegistry registry;
+    private final ModelRegistry.Entry entry;
+    // finds and applies the fastest configuration, may be null
+    private final ModelTuner tuner;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+    private volatile State state = null;
+    private volatile Model model;
+    private volatile Tokenizer tokenizer;
+    // how the model is run, null if it is loaded as it is
+    private volatile ModelTuner.Configuration configuration;
+    // set by close(), a load still in progress frees what it created (guarded by this)
+    private boolean closed = false;
+    // true while prepare() is running (guarded by this)
+    private boolean running = false;
+    // true while this loader holds the modelPermit (guarded by this)
+    private boolean holdsPermit = false;
+
+    /**
+     * @param directory the directory with the files of the model
+     * @param files the files the model needs, and where to download them from
+     * @param listener receives the changes of state
+     */
+    public ModelLoader(File directory, List<ModelDownloader.RemoteFile> files, Listener listener) {
+        this(directory, files, null, listener);
+    }
+
+    /**
+     * @param directory the directory with the files of the model
+     * @param files the files the model needs, and where to download them from
+     * @param tuner chooses how to run the model on this device, null to use the files as they are
+     * @param listener receives the changes of state
+     */
+    public ModelLoader(File directory, List<ModelDownloader.RemoteFile> files, ModelTuner tuner, Listener listener) {
+        this(directory, files, null, null, tuner, listener);
+    }
+
+    /**
+     * Loads a model of the registry, in its own directory. Before the download the registry
+     * makes room for it, deleting the models not used for the longest time.
+     *
+     * @param registry the models of the app
+     * @param entry the model to load
+     * @param tuner chooses how to run the model on this device, null to use the files as they are
+     * @param listener receives the changes of state
+     */
+    public ModelLoader(ModelRegistry registry, ModelRegistry.Entry entry, ModelTuner tuner, Listener listener) {
+        this(registry.getDirectory(entry), entry.files, registry, entry, tuner, listener);
+    }
+
+    private ModelLoader(File directory, List<ModelDownloader.RemoteFile> files, ModelRegistry registry,
+                        ModelRegistry.Entry entry, ModelTuner tuner, Listener listener) {
+        this.directory = directory;
+        this.files = files;
+        this.registry = registry;
+        this.entry = entry;
+        this.tuner = tuner;
+        this.listener = listener;
+    }
+
+    /** Starts checking, downloading and loading the model in the background */
+    public void start() {
+        executor.execute(this::prepare);
+        executor.shutdown();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /** The loaded model, null until the state is READY */
+    public Model getModel() {
+        return state == State.READY ? model : null;
+    }
+
+    /** The configuration of the tuner the model was loaded with, null if it was loaded as it is */
+    public ModelTuner.Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /** The tokenizer of the model, null until the state is READY */
+    public Tokenizer getTokenizer() {
+        return state == State.READY ? tokenizer : null;
+    }
+
+    private void prepare() {
+        synchronized (this) {
+            if (closed) return;
+            running = true;
+        }
+        try {
+            // the model of the previous loader may still be downloaded, loaded or in memory
+            modelPermit.acquire();
+            synchronized (this) {
+                holdsPermit = true;
+                if (closed) return;
+            }
+            List<ModelDownloader.RemoteFile> files = this.files;
+            if (registry != null) {
+                registry.prepare(entry);
+                // with the sizes and hashes published by the server, if the manifest does not have them
+                files = registry.getFiles(entry);
+            }
+            List<ModelDownloader.RemoteFile> missing = findMissingFiles(files);
+            if (!missing.isEmpty()) {
+                setState(State.MISSING);
+                setState(State.DOWNLOADING);
+                long begin = System.currentTimeMillis();
+                boolean downloaded = ModelDownloader.downloadModel(directory, missing, ModelDownloader.DEFAULT_CONNECTIONS,
+                        new ModelDownloader.DownloadCallback() {
+                            @Override
+                            public void onProgress(long lastBytesRead, long bytesRead, long bytesTotal) {
+                                mainHandler.post(() -> listener.onDownloadProgress(bytesRead, bytesTotal));
+                            }
+
+                            @Override
+                            public void onDownloadComplete() {
+                                Log.d(TAG, "All downloads completed.");
+                            }
+                        });
+                if (!downloaded) {
+                    setState(State.FAILED);
+                    return;
+                }
+                metrics.recordStartup("download", System.currentTimeMillis() - begin);
+            }
+
+            File modelDirectory = tune();
+
+            setState(State.LOADING);
+            long begin = System.currentTimeMillis();
+            Trace.beginSection("model load");
+            try {
+                model = new Model(modelDirectory.getPath());
+                tokenizer = model.createTokenizer();
+            } finally {
+                Trace.endSection();
+            }
+            metrics.recordStartup("load", System.currentTimeMillis() - begin);
+
+            setState(State.WARMING);
+            begin = System.currentTimeMillis();
+            Trace.beginSection("warm up");
+            try {
+                warmUp();
+            } finally {
+                Trace.endSection();
+            }
+            metrics.recordStartup("warm up", System.currentTimeMillis() - begin);
+
+            synchronized (this) {
+                // nobody wants the model anymore, it is freed below
+                if (closed) return;
+            }
+            setState(State.READY);
+        } catch (GenAIException | IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to prepare the model: " + e.getMessage());
+            setState(State.FAILED);
+        } catch (InterruptedException e) {
+            // closed while waiting for the previous loader
+            Log.d(TAG, "Model load cancelled");
+        } finally {
+            synchronized (this) {
+                running = false;
+                // what a failed load created is freed too, and the next loader can start
+                if (closed || state != State.READY) freeModel();
+            }
+        }
+    }
+
+    /**
+     * Frees the model and the tokenizer. If they are still being prepared, the work is
+     * interrupted (a download stops at the next block, a load or a tuning run cannot be
+     * stopped) and they are freed as soon as it is over. Do not call it while the model is generating.
+     */
+    public synchronized void close() {
+        closed = true;
+        // interrupts prepare(), and the download threads with it
+        executor.shutdownNow();
+        // a load in progress would still be using them, they are freed when it is over
+        if (!running) freeModel();
+    }
+
+    private synchronized void freeModel() {
+        if (tokenizer != null) {
+            tokenizer.close();
+            tokenizer = null;
+        }
+        if (model != null) {
+            model.close();
+            model = null;
+        }
+        if (holdsPermit) {
+            holdsPermit = false;
+            modelPermit.release();
+        }
+    }
+
+    /** Finds (the first time) and applies the configuration of the tuner, returns where to load the model from */
+    private File tune() {
+        if (tuner == null) return directory;
+        ModelTuner.Configuration configuration = tuner.getSavedConfiguration();
+        if (configuration == null) {
+            setState(State.TUNING);
+            long begin = System.currentTimeMillis();
+            Trace.beginSection("tuning");
+            try {
+                configuration = tuner.tune();
+            } finally {
+                Trace.endSection();
+            }
+            metrics.recordStartup("tuning", System.currentTimeMillis() - begin);
+            if (configuration == null) return directory;
+        }
+        try {
+            File modelDirectory = tuner.prepare(configuration);
+            Log.d(TAG, "Loading the model as " + configuration);
+            this.configuration = configuration;
+            return modelDirectory;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to apply " + configuration + ", loading the model as it is: " + e.getMessage());
+            return directory;
+        }
+    }
+
+    /** Returns the files that are not on the device, that changed after they were verified, or that
+     * are not the expected ones: the files never verified are hashed once there is a hash to compare
+     * them with (see {@link #verify}) */
+    private List<ModelDownloader.RemoteFile> findMissingFiles(List<ModelDownloader.RemoteFile> files) {
+        ModelValidationCache validationCache = new ModelValidationCache(directory);
+        List<ModelDownloader.RemoteFile> missing = new ArrayList<>();
+        for (ModelDownloader.RemoteFile file : files) {
+            ModelValidationCache.Status status = validationCache.check(file.fileName, file.sha256);
+            if (status == ModelValidationCache.Status.UNKNOWN) {
+                // copied by hand, or downloaded by an old version of the app: it is checked once
+                if (!verify(validationCache, file)) missing.add(file);
+            } else if (status == ModelValidationCache.Status.INVALID) {
+                if (new File(directory, file.fileName).exists()) {
+                    Log.w(TAG, "File changed after it was verified, downloading it again: " + file.fileName);
+                }
+                missing.add(file);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Checks a file that was never verified against its size and its hash (the ones of the manifest,
+     * or the ones published by the server), and records it. It reads the whole file.
+     * Without a hash to compare it with, only its size is checked: it is not recorded, so it
+     * is checked again at the next launch, when the server may tell us its hash.
+     *
+     * @return false if the file is not the expected one, and must be downloaded again
+     */
+    private boolean verify(ModelValidationCache validationCache, ModelDownloader.RemoteFile file) {
+        long expectedSize = file.size;
+        String sha256 = file.sha256;
+        if (sha256 == null && file.compression == ModelDownloader.Compression.NONE) {
+            try {
+                ModelDownloader.RemoteInfo info = ModelDownloader.query(file);
+                sha256 = info.sha256;
+                if (expectedSize == 0) expectedSize = info.size;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to ask the hash of " + file.fileName + " to the server: " + e.getMessage());
+            }
+        }
+        long length = new File(directory, file.fileName).length();
+        if (expectedSize > 0 && length != expectedSize) {
+            Log.w(TAG, file.fileName + " has " + length + " bytes instead of " + expectedSize + ", downloading it again");
+            return false;
+        }
+        if (sha256 == null) {
+            // its own hash would make it VALID for good, even if it is truncated
+            Log.w(TAG, "No hash to verify " + file.fileName + " against, "
+                    + (expectedSize > 0 ? "only its size was checked" : "it is used as it is"));
+            return true;
+        }
+        Trace.beginSection("verify");
+        try {
+            if (validationCache.verify(file.fileName, sha256)) {
+                Log.d(TAG, "File verified: " + file.fileName);
+                return true;
+            }
+            Log.w(TAG, "File corrupted, downloading it again: " + file.fileName);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to verify " + file.fileName + ", downloading it again: " + e.getMessage());
+            return false;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /** Runs a tiny generation, so that the first real answer does not pay for the cold start */
+    private void warmUp() throws GenAIException {
+        Sequences sequences = null;
+        try {
+            sequences = tokenizer.encode(WARM_UP_PROMPT);
+            int[] prompt = sequences.getSequence(0);
+            new StreamingGenerator(model, tokenizer).generate(prompt, prompt.length + WARM_UP_TOKENS, delta -> {
+            });
+        } finally {
+            if (sequences != null) sequences.close();
+        }
+    }
+
+    private void setState(State newState) {
+        state = newState;
+        Log.d(TAG, "Model state: " + newState);
+        mainHandler.post(() -> listener.onStateChanged(newState));
+    }
+}
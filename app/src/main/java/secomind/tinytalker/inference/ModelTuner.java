@@ -0,0 +1,273 @@
+package secomind.tinytalker.inference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PowerManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import ai.onnxruntime.genai.GenAIException;
+import ai.onnxruntime.genai.Model;
+import ai.onnxruntime.genai.Sequences;
+import ai.onnxruntime.genai.Tokenizer;
+
+/**
+ * Finds the fastest way to run the model on this phone: how many threads
+ * (the intra_op_num_threads of onnxruntime) and which variant of the model, if more
+ * than one is installed (e.g. int4 and int8 builds of the same model).
+ *
+ * The first time, every configuration is loaded and answers the same short prompt;
+ * the one with the shortest prefill + decode is saved in the SharedPreferences, together
+ * with the build of the device, and used from then on. The runs done while the phone
+ * is hot (thermal throttling) are thrown away, since they would measure the heat and not
+ * the configuration. {@link #clear()} makes the next load tune again.
+ *
+ * A configuration is applied without touching the downloaded files (they are verified
+ * against their hash): a directory is made with a copy of genai_config.json with the
+ * new number of threads, and links to all the other files of the model.
+ *
+ * The variants other than the default model are the subdirectories of
+ * {@link #VARIANTS_DIRECTORY}, in the directory of the model, that contain a genai_config.json.
+ */
+public class ModelTuner {
+
+    private static final String TAG = "secomind.tinytalker.ModelTuner";
+
+    // where the variants of the model (other than the default one) can be copied
+    public static final String VARIANTS_DIRECTORY = "variants";
+    // the variant in the directory of the model itself
+    public static final String DEFAULT_VARIANT = "default";
+    // threads as written in genai_config.json (onnxruntime decides)
+    public static final int DEFAULT_THREADS = 0;
+
+    private static final String PREFERENCES = "model_tuning";
+    private static final String TUNED_DIRECTORY = "tuned";
+    private static final String CONFIG_FILE = "genai_config.json";
+
+    // tokens generated by every run: enough to measure the decode, few enough to be fast
+    private static final int TUNING_TOKENS = 32;
+    private static final String TUNING_PROMPT = PromptBuilder.USER_TAG
+            + "Write a short paragraph about the sea, the wind and the boats that sail "
+            + "on it, for a child that has never seen them." + PromptBuilder.END_TAG
+            + PromptBuilder.ASSISTANT_TAG;
+
+    /** How to run the model: a variant and a number of threads */
+    public static final class Configuration {
+        public final String variant;
+        public final int threads;
+
+        public Configuration(String variant, int threads) {
+            this.variant = variant;
+            this.threads = threads;
+        }
+
+        @Override
+        public String toString() {
+            return variant + " with " + (threads == DEFAULT_THREADS ? "default" : String.valueOf(threads)) + " threads";
+        }
+    }
+
+    private final Context context;
+    private final File modelDirectory;
+    private final String modelId;
+
+    /**
+     * @param modelDirectory the directory with the files of the (default) model
+     * @param modelId what tells the model apart from the others: a new model is tuned again
+     */
+    public ModelTuner(Context context, File modelDirectory, String modelId) {
+        this.context = context.getApplicationContext();
+        this.modelDirectory = modelDirectory;
+        this.modelId = modelId;
+    }
+
+    /** The configuration saved for this device and model, null if it was never tuned */
+    public Configuration getSavedConfiguration() {
+        SharedPreferences preferences = getPreferences();
+        // a new build of the system may change the speed (e.g. a new onnxruntime backend)
+        if (!Build.FINGERPRINT.equals(preferences.getString(modelId + ".device", null))) return null;
+        String variant = preferences.getString(modelId + ".variant", null);
+        if (variant == null || variantDirectory(variant) == null) return null;
+        return new Configuration(variant, preferences.getInt(modelId + ".threads", DEFAULT_THREADS));
+    }
+
+    /** Forgets the saved configuration: the next load of the model tunes it again */
+    public void clear() {
+        getPreferences().edit()
+                .remove(modelId + ".device")
+                .remove(modelId + ".variant")
+                .remove(modelId + ".threads")
+                .apply();
+    }
+
+    /**
+     * Runs the model with every configuration, and saves the fastest.
+     * It loads the model many times: call it before the model is loaded, from a background thread.
+     *
+     * @return the fastest configuration, null if no run could be measured
+     */
+    @WorkerThread
+    public Configuration tune() {
+        Configuration best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (String variant : findVariants()) {
+            for (int threads : candidateThreads()) {
+                Configuration configuration = new Configuration(variant, threads);
+                int thermalBefore = getThermalStatus();
+                if (thermalBefore >= PowerManager.THERMAL_STATUS_MODERATE) {
+                    Log.w(TAG, "The phone is too hot, skipping " + configuration);
+                    continue;
+                }
+                long nanos = measure(configuration);
+                if (getThermalStatus() > thermalBefore) {
+                    Log.w(TAG, "The phone heated up, the run of " + configuration + " is thrown away");
+                    continue;
+                }
+                Log.d(TAG, configuration + ": " + (nanos < 0 ? "failed" : nanos / 1000000 + " ms"));
+                if (nanos >= 0 && nanos < bestNanos) {
+                    best = configuration;
+                    bestNanos = nanos;
+                }
+            }
+        }
+        if (best != null) {
+            Log.d(TAG, "The fastest configuration is " + best);
+            getPreferences().edit()
+                    .putString(modelId + ".device", Build.FINGERPRINT)
+                    .putString(modelId + ".variant", best.variant)
+                    .putInt(modelId + ".threads", best.threads)
+                    .apply();
+        }
+        return best;
+    }
+
+    /**
+     * The directory to load the model from with the given configuration.
+     * With the default number of threads it is the directory of the variant itself.
+     */
+    @WorkerThread
+    public File prepare(Configuration configuration) throws IOException {
+        File variantDirectory = variantDirectory(configuration.variant);
+        if (variantDirectory == null) throw new IOException("The variant " + configuration.variant + " is not installed");
+        if (configuration.threads == DEFAULT_THREADS) return variantDirectory;
+
+        File tuned = new File(new File(modelDirectory, TUNED_DIRECTORY), configuration.variant + "-" + configuration.threads);
+        if (!tuned.isDirectory() && !tuned.mkdirs()) throw new IOException("Unable to create " + tuned);
+
+        File[] files = variantDirectory.listFiles();
+        if (files == null) throw new IOException("Unable to read " + variantDirectory);
+        try {
+            for (File file : files) {
+                if (!file.isFile() || file.getName().equals(CONFIG_FILE)) continue;
+                File link = new File(tuned, file.getName());
+                // also removes a link left to a file that was deleted
+                link.delete();
+                Os.symlink(file.getAbsolutePath(), link.getPath());
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Unable to link the files of the model: " + e.getMessage());
+        }
+
+        try {
+            String config = new String(Files.readAllBytes(new File(variantDirectory, CONFIG_FILE).toPath()),
+                    StandardCharsets.UTF_8);
+            JSONObject json = new JSONObject(config);
+            JSONObject decoder = json.getJSONObject("model").getJSONObject("decoder");
+            JSONObject sessionOptions = decoder.optJSONObject("session_options");
+            if (sessionOptions == null) {
+                sessionOptions = new JSONObject();
+                decoder.put("session_options", sessionOptions);
+            }
+            sessionOptions.put("intra_op_num_threads", configuration.threads);
+            Files.write(new File(tuned, CONFIG_FILE).toPath(), json.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("Unable to read " + CONFIG_FILE + ": " + e.getMessage());
+        }
+        return tuned;
+    }
+
+    /** The variants installed: the default model, and the ones in the variants directory */
+    private List<String> findVariants() {
+        List<String> variants = new ArrayList<>();
+        variants.add(DEFAULT_VARIANT);
+        File[] directories = new File(modelDirectory, VARIANTS_DIRECTORY).listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                if (new File(directory, CONFIG_FILE).isFile()) variants.add(directory.getName());
+            }
+        }
+        return variants;
+    }
+
+    private File variantDirectory(String variant) {
+        File directory = variant.equals(DEFAULT_VARIANT) ? modelDirectory : new File(new File(modelDirectory, VARIANTS_DIRECTORY), variant);
+        return new File(directory, CONFIG_FILE).isFile() ? directory : null;
+    }
+
+    /** A few thread counts between one and the number of cores, and the default of onnxruntime */
+    private static List<Integer> candidateThreads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> threads = new TreeSet<>();
+        for (int count : new int[]{1, 2, 4, cores / 2, cores}) {
+            if (count >= 1 && count <= cores) threads.add(count);
+        }
+        List<Integer> candidates = new ArrayList<>();
+        candidates.add(DEFAULT_THREADS);
+        candidates.addAll(threads);
+        return candidates;
+    }
+
+    /** Loads the model with the configuration, and measures a short generation. Returns -1 if it failed. */
+    private long measure(Configuration configuration) {
+        Model model = null;
+        Tokenizer tokenizer = null;
+        Sequences sequences = null;
+        try {
+            model = new Model(prepare(configuration).getPath());
+            tokenizer = model.createTokenizer();
+            sequences = tokenizer.encode(TUNING_PROMPT);
+            int[] prompt = sequences.getSequence(0);
+            StreamingGenerator generator = new StreamingGenerator(model, tokenizer);
+            // the first run pays for the cold start, like the warm-up of the ModelLoader
+            generator.generate(prompt, prompt.length + 2, delta -> {
+            });
+            GenerationMetrics metrics = new GenerationMetrics();
+            generator.generate(prompt, prompt.length + TUNING_TOKENS, null, metrics, delta -> {
+            });
+            return metrics.prefillNanos + metrics.decodeNanos;
+        } catch (GenAIException | IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to run " + configuration + ": " + e.getMessage());
+            return -1;
+        } finally {
+            if (sequences != null) sequences.close();
+            if (tokenizer != null) tokenizer.close();
+            if (model != null) model.close();
+        }
+    }
+
+    /** The thermal status of the phone (PowerManager.THERMAL_STATUS_*), NONE if it is not known */
+    private int getThermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return PowerManager.THERMAL_STATUS_NONE;
+        PowerManager powerManager = context.getSystemService(PowerManager.class);
+        return powerManager == null ? PowerManager.THERMAL_STATUS_NONE : powerManager.getCurrentThermalStatus();
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,67 @@
+package secomind.tinytalker.inference;
+
+import java.util.List;
+
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Builds the textual prompt given to the model, starting from the system
+ * message and the messages exchanged in the chat.
+ *
+ * The format is the chat template used by the Phi-3 family of models:
+ * <pre>
+ * &lt;|system|&gt;
+ * ...&lt;|end|&gt;
+ * &lt;|user|&gt;
+ * ...&lt;|end|&gt;
+ * &lt;|assistant|&gt;
+ * </pre>
+ */
+public class PromptBuilder {
+
+    public static final String SYSTEM_TAG = "<|system|>\n";
+    public static final String USER_TAG = "<|user|>\n";
+    public static final String ASSISTANT_TAG = "<|assistant|>\n";
+    public static final String END_TAG = "<|end|>\n";
+
+    private PromptBuilder() {
+    }
+
+    /** Formats the system message */
+    public static String systemTurn(String system) {
+        return SYSTEM_TAG + system + END_TAG;
+    }
+
+    /**
+     * The system message followed by the summary of the first messages of the chat,
+     * which are not in the prompt anymore (see {@link GenerationSession#compact}).
+     *
+     * @param summary the summary, null if there is none
+     */
+    public static String systemMessage(String system, String summary) {
+        if (summary == null) return system;
+        return system + "\n\nSummary of the conversation so far:\n" + summary;
+    }
+
+    /** Formats a single message of the chat */
+    public static String turn(ChatMessage message) {
+        return (message.isUser() ? USER_TAG : ASSISTANT_TAG) + message.getMessage() + END_TAG;
+    }
+
+    /**
+     * Builds the whole prompt. The last element of the history is expected
+     * to be the user message to be answered. The prompt ends with the
+     * assistant tag, so that the model continues from there.
+     *
+     * @param system the system message
+     * @param history the messages of the chat, from the oldest to the newest
+     */
+    public static String buildPrompt(String system, List<ChatMessage> history) {
+        StringBuilder prompt = new StringBuilder(systemTurn(system));
+        for (ChatMessage message : history) {
+            prompt.append(turn(message));
+        }
+        prompt.append(ASSISTANT_TAG);
+        return prompt.toString();
+    }
+}
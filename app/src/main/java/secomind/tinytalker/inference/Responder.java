@@ -0,0 +1,41 @@
+package secomind.tinytalker.inference;
+
+import android.os.CancellationSignal;
+
+import java.util.List;
+
+import ai.onnxruntime.genai.GenAIException;
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Something that answers the messages of the chat, streaming the text of the answer.
+ * Usually it is the model (see {@link GenerationSession}), in the benchmarks it is
+ * a {@link FakeResponder}.
+ */
+public interface Responder {
+
+    /**
+     * Generates the answer to the last message of the history.
+     * Blocks until the generation is over, call it from a background thread.
+     *
+     * @param history the messages of the chat, the last one is the user message to answer
+     * @param signal stops the generation when cancelled, may be null
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    int generate(List<ChatMessage> history, CancellationSignal signal, StreamingGenerator.TokenListener listener)
+            throws GenAIException;
+
+    /**
+     * Generates more answers to the last message of the history, all together.
+     * Blocks until the generation is over, call it from a background thread.
+     *
+     * @param history the messages of the chat, the last one is the user message to answer
+     * @param count how many answers
+     * @param signal stops the generation when cancelled, may be null
+     * @param listener receives the decoded text of every answer, token after token
+     * @return the number of generated tokens of every answer
+     */
+    int[] generateCandidates(List<ChatMessage> history, int count, CancellationSignal signal,
+                             StreamingGenerator.CandidateListener listener) throws GenAIException;
+}
@@ -0,0 +1,324 @@
+package secomind.tinytalker.inference;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Remembers the last answers of the model, so that the same question in the same
+ * context is answered without running the model again (e.g. a canned prompt asked
+ * at the beginning of every chat).
+ *
+ * The key is a hash of everything that decides the answer: the model, the options of
+ * the generation and the prompt (the system message and the messages in the context
+ * window), with the spaces of every message normalized. The model uses greedy search,
+ * so the same key always gives the same answer.
+ *
+ * An answer is kept as its text and the pieces it was streamed in: a cached answer
+ * is replayed piece by piece to the same {@link StreamingGenerator.TokenListener},
+ * so the chat shows it exactly as a generated one. The answers that were stopped
+ * are not cached.
+ *
+ * The cache is bounded by the size of the answers, the least recently used are dropped.
+ * If a file is given, the cache is read from it the first time it is used, and every new
+ * answer is appended to it (a few KB, on the generation thread). The file keeps the answers
+ * dropped since, so when it gets much bigger than the cache it is written again with only
+ * the answers in memory.
+ */
+public class ResponseCache {
+
+    private static final String TAG = "secomind.tinytalker.ResponseCache";
+
+    // about 1000 answers of 500 tokens
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int FILE_VERSION = 2;
+    // the file is written again when it is this many times the size of the cache
+    private static final int COMPACTION_FACTOR = 2;
+    // what an entry costs besides its text: key, pieces, objects
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** An answer in the cache: its text and where every streamed piece ends */
+    static final class Answer {
+        final String text;
+        final int[] pieceEnds;
+        final int tokens;
+
+        Answer(String text, int[] pieceEnds, int tokens) {
+            this.text = text;
+            this.pieceEnds = pieceEnds;
+            this.tokens = tokens;
+        }
+
+        /**
+         * Streams the answer again to the listener, as it was generated.
+         *
+         * @return the number of tokens of the answer, or of the pieces streamed if it was stopped
+         */
+        int replay(CancellationSignal signal, StreamingGenerator.TokenListener listener) {
+            int begin = 0;
+            for (int i = 0; i < pieceEnds.length; i++) {
+                if (signal != null && signal.isCanceled()) return i;
+                listener.onToken(text.substring(begin, pieceEnds[i]));
+                begin = pieceEnds[i];
+            }
+            return tokens;
+        }
+    }
+
+    /** Forwards the streamed text to the listener, remembering it for the cache */
+    static final class Recorder implements StreamingGenerator.TokenListener {
+        private final StreamingGenerator.TokenListener listener;
+        private final StringBuilder text = new StringBuilder();
+        private int[] pieceEnds = new int[64];
+        private int pieces = 0;
+
+        Recorder(StreamingGenerator.TokenListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onToken(String delta) {
+            listener.onToken(delta);
+            // the empty pieces (e.g. the special tokens) are not replayed
+            if (delta.isEmpty()) return;
+            text.append(delta);
+            if (pieces == pieceEnds.length) pieceEnds = Arrays.copyOf(pieceEnds, pieces * 2);
+            pieceEnds[pieces++] = text.length();
+        }
+
+        Answer toAnswer(int tokens) {
+            return new Answer(text.toString(), Arrays.copyOf(pieceEnds, pieces), tokens);
+        }
+    }
+
+    private final LruCache<String, Answer> answers;
+    private final int maxBytes;
+    private final File file;
+    private boolean loaded;
+
+    /**
+     * @param maxBytes the maximum size of the answers in memory (and on the disk)
+     * @param file where the cache is saved, null to keep it only in memory
+     */
+    public ResponseCache(int maxBytes, File file) {
+        this.maxBytes = maxBytes;
+        this.file = file;
+        this.loaded = file == null;
+        this.answers = new LruCache<String, Answer>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Answer answer) {
+                return 2 * answer.text.length() + 4 * answer.pieceEnds.length + ENTRY_OVERHEAD;
+            }
+        };
+    }
+
+    /**
+     * The key of the answer to the given prompt.
+     *
+     * @param modelId the model that answers (e.g. the name of its file)
+     * @param options the options of the generation (see {@link StreamingGenerator#describeOptions})
+     * @param system the system message
+     * @param messages the messages in the context of the model, in order
+     */
+    public static String key(String modelId, String options, String system, List<ChatMessage> messages) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, modelId);
+        update(digest, options);
+        update(digest, normalize(system));
+        update(digest, messages.size());
+        for (ChatMessage message : messages) {
+            update(digest, message.isUser() ? 1 : 0);
+            update(digest, normalize(message.getMessage()));
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /** The same text with the spaces at the ends removed, and the other ones as single spaces */
+    static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+    /** The cached answer with the key, null if there is none. Counts a hit or a miss. */
+    public synchronized Answer get(String key) {
+        load();
+        return answers.get(key);
+    }
+
+    /** Adds an answer to the cache, and appends it to the file if the cache has one */
+    public synchronized void put(String key, Answer answer) {
+        load();
+        answers.put(key, answer);
+        if (file == null) return;
+        if (file.length() > (long) COMPACTION_FACTOR * maxBytes) {
+            save();
+        } else {
+            append(key, answer);
+        }
+    }
+
+    public int getHitCount() {
+        return answers.hitCount();
+    }
+
+    public int getMissCount() {
+        return answers.missCount();
+    }
+
+    /** Frees the memory of the answers: if the cache has a file, they are read again when needed */
+    public synchronized void trimMemory() {
+        if (file == null) return;
+        answers.evictAll();
+        loaded = false;
+    }
+
+    /** Drops all the answers, also from the disk */
+    public synchronized void clear() {
+        answers.evictAll();
+        if (file != null && file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        if (!file.exists()) return;
+        int count = 0;
+        boolean torn = false;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FILE_VERSION) {
+                // written by an older version of the app: it is started again
+                input.close();
+                clear();
+                return;
+            }
+            // from the least to the most recently added, as they were appended
+            while (true) {
+                // the file ends cleanly only between two answers
+                input.mark(1);
+                if (input.read() == -1) break;
+                input.reset();
+                try {
+                    String key = input.readUTF();
+                    answers.put(key, read(input));
+                    count++;
+                } catch (EOFException e) {
+                    // the app was killed while it appended the last one (its key included)
+                    torn = true;
+                    break;
+                }
+            }
+            Log.d(TAG, "Loaded " + count + " answers");
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read the cached answers: " + e.getMessage());
+            answers.evictAll();
+            return;
+        }
+        // the next answers are appended after a complete one
+        if (torn) save();
+    }
+
+    private static Answer read(DataInputStream input) throws IOException {
+        byte[] text = new byte[input.readInt()];
+        input.readFully(text);
+        int[] pieceEnds = new int[input.readInt()];
+        for (int p = 0; p < pieceEnds.length; p++) {
+            pieceEnds[p] = input.readInt();
+        }
+        int tokens = input.readInt();
+        return new Answer(new String(text, StandardCharsets.UTF_8), pieceEnds, tokens);
+    }
+
+    private static void write(DataOutputStream output, String key, Answer answer) throws IOException {
+        byte[] text = answer.text.getBytes(StandardCharsets.UTF_8);
+        output.writeUTF(key);
+        output.writeInt(text.length);
+        output.write(text);
+        output.writeInt(answer.pieceEnds.length);
+        for (int end : answer.pieceEnds) {
+            output.writeInt(end);
+        }
+        output.writeInt(answer.tokens);
+    }
+
+    /** Appends an answer at the end of the file */
+    private void append(String key, Answer answer) {
+        boolean newFile = !file.exists() || file.length() == 0;
+        try (FileOutputStream stream = new FileOutputStream(file, true);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream))) {
+            if (newFile) output.writeInt(FILE_VERSION);
+            write(output, key, answer);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save the cached answer: " + e.getMessage());
+        }
+    }
+
+    /** Writes the file again with only the answers in memory */
+    private void save() {
+        File temporary = new File(file.getPath() + ".tmp");
+        // from the least to the most recently used
+        Map<String, Answer> snapshot = answers.snapshot();
+        try (FileOutputStream stream = new FileOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream))) {
+            output.writeInt(FILE_VERSION);
+            for (Map.Entry<String, Answer> entry : snapshot.entrySet()) {
+                write(output, entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save the cached answers: " + e.getMessage());
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            Log.w(TAG, "Unable to save the cached answers in " + file);
+            temporary.delete();
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // every field starts with its length, so that "ab" + "c" is not "a" + "bc"
+        update(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void update(MessageDigest digest, int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    @Override
+    public String toString() {
+        return "cache " + getHitCount() + " hits, " + getMissCount() + " misses";
+    }
+}
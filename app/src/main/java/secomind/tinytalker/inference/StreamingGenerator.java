@@ -0,0 +1,318 @@
+package secomind.tinytalker.inference;
+
+import android.os.CancellationSignal;
+import android.os.Debug;
+import android.os.Trace;
+
+import ai.onnxruntime.genai.GenAIException;
+import ai.onnxruntime.genai.Generator;
+import ai.onnxruntime.genai.GeneratorParams;
+import ai.onnxruntime.genai.Model;
+import ai.onnxruntime.genai.Sequences;
+import ai.onnxruntime.genai.Tokenizer;
+import ai.onnxruntime.genai.TokenizerStream;
+
+
+/**
+ * Runs the decode loop of the model, one token at a time, and hands every
+ * piece of decoded text to a {@link TokenListener} as soon as it is available.
+ *
+ * This class does no threading: {@link #generate} blocks until the generation is
+ * over, so it has to be called from a background thread.
+ * The generation can be stopped with a CancellationSignal, which is checked before
+ * every token: the answer ends right after the token being computed.
+ *
+ * The prefill and every decode step are android.os.Trace sections, so they
+ * can be seen in Perfetto; their durations can be collected in a {@link GenerationMetrics}.
+ *
+ * {@link #generateCandidates} produces more answers to the same prompt in one run:
+ * the prompt is given as a batch of copies, so every step computes a token of every
+ * answer together (one prefill and one decode loop instead of one per answer), and the
+ * answers differ because the tokens are sampled instead of chosen greedily.
+ *
+ * NB: the decode is one token per step, also when a smaller draft model would be
+ * available (speculative decoding). The onnxruntime-genai version in use (0.4.0) cannot
+ * do the verification step: a Generator only takes its input at creation time, so the
+ * k tokens proposed by the draft cannot be appended to it and checked in one batched step,
+ * its logits cannot be read to compare them with the draft, and the rejected tokens
+ * cannot be removed from its KV cache. Checking every proposal with a new Generator would
+ * prefill the whole prompt again, which costs much more than the tokens it saves.
+ * When the library can append tokens to a live Generator and rewind it, the draft loop
+ * belongs here, around {@link Generator#generateNextToken()}, so that the listener,
+ * the cancellation and the metrics stay the same.
+ */
+public class StreamingGenerator {
+
+    /** Receives the text produced by the model while it is being generated */
+    public interface TokenListener {
+        /** A new piece of text was decoded. Called on the generation thread. */
+        void onToken(String delta);
+    }
+
+    /** Receives the text of the answers generated together (see {@link #generateCandidates}) */
+    public interface CandidateListener {
+        /** A new piece of text of the given answer was decoded. Called on the generation thread. */
+        void onToken(int candidate, String delta);
+    }
+
+    // default maximum length (prompt + answer) in tokens of Phi-3 mini 4k
+    public static final int DEFAULT_MAX_LENGTH = 4096;
+
+    // the native heap is sampled once every these tokens, to find its peak
+    private static final int HEAP_SAMPLE_INTERVAL = 16;
+
+    // sampling of the candidates: different enough, and still on topic
+    public static final double CANDIDATE_TEMPERATURE = 0.8;
+    public static final double CANDIDATE_TOP_P = 0.95;
+
+    private final Model model;
+    private final Tokenizer tokenizer;
+
+    public StreamingGenerator(Model model, Tokenizer tokenizer) {
+        this.model = model;
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * The search options set in the GeneratorParams, that together with the prompt decide the answer.
+     * The others come from the genai_config.json of the model (greedy search for Phi-3).
+     */
+    public static String describeOptions(int maxLength) {
+        return "max_length=" + maxLength;
+    }
+
+    /**
+     * Encodes the prompt and generates the answer.
+     *
+     * @param prompt the full prompt (see {@link PromptBuilder})
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    public int generate(String prompt, TokenListener listener) throws GenAIException {
+        Sequences encodedPrompt = null;
+        try {
+            encodedPrompt = tokenizer.encode(prompt);
+            return generate(encodedPrompt.getSequence(0), listener);
+        } finally {
+            if (encodedPrompt != null) encodedPrompt.close();
+        }
+    }
+
+    /**
+     * Generates the answer starting from an already tokenized prompt.
+     *
+     * @param inputTokens the token ids of the full prompt
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    public int generate(int[] inputTokens, TokenListener listener) throws GenAIException {
+        return generate(inputTokens, DEFAULT_MAX_LENGTH, listener);
+    }
+
+    /**
+     * Generates the answer starting from an already tokenized prompt.
+     *
+     * @param inputTokens the token ids of the full prompt
+     * @param maxLength the maximum length, in tokens, of prompt + answer
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    public int generate(int[] inputTokens, int maxLength, TokenListener listener) throws GenAIException {
+        return generate(inputTokens, maxLength, null, listener);
+    }
+
+    /**
+     * Generates the answer starting from an already tokenized prompt, until the model
+     * is done or the signal is cancelled.
+     *
+     * @param inputTokens the token ids of the full prompt
+     * @param maxLength the maximum length, in tokens, of prompt + answer
+     * @param signal stops the generation when cancelled, may be null
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    public int generate(int[] inputTokens, int maxLength, CancellationSignal signal, TokenListener listener)
+            throws GenAIException {
+        return generate(inputTokens, maxLength, signal, null, listener);
+    }
+
+    /**
+     * Generates the answer starting from an already tokenized prompt, until the model
+     * is done or the signal is cancelled, measuring the prefill and the decode.
+     *
+     * @param inputTokens the token ids of the full prompt
+     * @param maxLength the maximum length, in tokens, of prompt + answer
+     * @param signal stops the generation when cancelled, may be null
+     * @param metrics receives the timings of the generation, may be null
+     * @param listener receives the decoded text, token after token
+     * @return the number of generated tokens
+     */
+    public int generate(int[] inputTokens, int maxLength, CancellationSignal signal, GenerationMetrics metrics,
+                        TokenListener listener) throws GenAIException {
+        if (signal != null && signal.isCanceled()) {
+            if (metrics != null) metrics.cancelled = true;
+            return 0;
+        }
+        TokenizerStream stream = null;
+        GeneratorParams generatorParams = null;
+        Generator generator = null;
+
+        try {
+            stream = tokenizer.createStream();
+            generatorParams = model.createGeneratorParams();
+            generatorParams.setSearchOption("max_length", maxLength);
+            generatorParams.setInput(inputTokens, inputTokens.length, 1);
+
+            generator = new Generator(model, generatorParams);
+
+            int generated = 0;
+            long peakHeap = Debug.getNativeHeapAllocatedSize();
+            long decodeStart = 0;
+            while (!generator.isDone()) {
+                if (signal != null && signal.isCanceled()) {
+                    if (metrics != null) metrics.cancelled = true;
+                    break;
+                }
+
+                // the first step processes the whole prompt (prefill), the others one token each
+                long stepStart = System.nanoTime();
+                Trace.beginSection(generated == 0 ? "prefill" : "decode token");
+                try {
+                    generator.computeLogits();
+                    generator.generateNextToken();
+                } finally {
+                    Trace.endSection();
+                }
+
+                int token = generator.getLastTokenInSequence(0);
+                listener.onToken(stream.decode(token));
+                generated++;
+
+                if (generated == 1) {
+                    decodeStart = System.nanoTime();
+                    if (metrics != null) {
+                        metrics.prefillNanos = decodeStart - stepStart;
+                        metrics.timeToFirstTokenNanos = decodeStart - metrics.startNanos;
+                    }
+                }
+                if (generated % HEAP_SAMPLE_INTERVAL == 1) {
+                    peakHeap = Math.max(peakHeap, Debug.getNativeHeapAllocatedSize());
+                }
+            }
+
+            if (metrics != null) {
+                metrics.promptTokens = inputTokens.length;
+                metrics.generatedTokens = generated;
+                if (generated > 0) metrics.decodeNanos = System.nanoTime() - decodeStart;
+                metrics.peakNativeHeapBytes = Math.max(peakHeap, Debug.getNativeHeapAllocatedSize());
+            }
+            return generated;
+        } finally {
+            if (generator != null) generator.close();
+            if (stream != null) stream.close();
+            if (generatorParams != null) generatorParams.close();
+        }
+    }
+
+    /**
+     * Generates more answers to the same prompt in a single batched run, until all of them
+     * are done or the signal is cancelled. The prompt is processed once per step for the
+     * whole batch, which uses the cores much better than generating the answers one after the other.
+     * The tokens are sampled (see {@link #CANDIDATE_TEMPERATURE}), so every answer is different.
+     *
+     * An answer that is over receives the padding token until the others are done:
+     * it decodes to nothing, so it gives no more text to the listener.
+     *
+     * @param inputTokens the token ids of the full prompt
+     * @param count how many answers
+     * @param maxLength the maximum length, in tokens, of prompt + answer
+     * @param signal stops the generation when cancelled, may be null
+     * @param metrics receives the timings of the generation (the tokens of all the answers), may be null
+     * @param listener receives the decoded text of every answer, token after token
+     * @return the number of generated tokens of every answer
+     */
+    public int[] generateCandidates(int[] inputTokens, int count, int maxLength, CancellationSignal signal,
+                                    GenerationMetrics metrics, CandidateListener listener) throws GenAIException {
+        int[] generated = new int[count];
+        if (signal != null && signal.isCanceled()) {
+            if (metrics != null) metrics.cancelled = true;
+            return generated;
+        }
+        TokenizerStream[] streams = new TokenizerStream[count];
+        GeneratorParams generatorParams = null;
+        Generator generator = null;
+
+        try {
+            for (int i = 0; i < count; i++) {
+                streams[i] = tokenizer.createStream();
+            }
+            // the same prompt for every row of the batch
+            int[] batch = new int[inputTokens.length * count];
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(inputTokens, 0, batch, i * inputTokens.length, inputTokens.length);
+            }
+            generatorParams = model.createGeneratorParams();
+            generatorParams.setSearchOption("max_length", maxLength);
+            generatorParams.setSearchOption("do_sample", true);
+            generatorParams.setSearchOption("temperature", CANDIDATE_TEMPERATURE);
+            generatorParams.setSearchOption("top_p", CANDIDATE_TOP_P);
+            generatorParams.setInput(batch, inputTokens.length, count);
+
+            generator = new Generator(model, generatorParams);
+
+            int steps = 0;
+            long peakHeap = Debug.getNativeHeapAllocatedSize();
+            long decodeStart = 0;
+            while (!generator.isDone()) {
+                if (signal != null && signal.isCanceled()) {
+                    if (metrics != null) metrics.cancelled = true;
+                    break;
+                }
+
+                long stepStart = System.nanoTime();
+                Trace.beginSection(steps == 0 ? "prefill candidates" : "decode candidates");
+                try {
+                    generator.computeLogits();
+                    generator.generateNextToken();
+                } finally {
+                    Trace.endSection();
+                }
+
+                for (int i = 0; i < count; i++) {
+                    String delta = streams[i].decode(generator.getLastTokenInSequence(i));
+                    if (delta.isEmpty()) continue;
+                    listener.onToken(i, delta);
+                    generated[i]++;
+                }
+                steps++;
+
+                if (steps == 1) {
+                    decodeStart = System.nanoTime();
+                    if (metrics != null) {
+                        metrics.prefillNanos = decodeStart - stepStart;
+                        metrics.timeToFirstTokenNanos = decodeStart - metrics.startNanos;
+                    }
+                }
+                if (steps % HEAP_SAMPLE_INTERVAL == 1) {
+                    peakHeap = Math.max(peakHeap, Debug.getNativeHeapAllocatedSize());
+                }
+            }
+
+            if (metrics != null) {
+                metrics.promptTokens = inputTokens.length;
+                for (int tokens : generated) {
+                    metrics.generatedTokens += tokens;
+                }
+                if (steps > 0) metrics.decodeNanos = System.nanoTime() - decodeStart;
+                metrics.peakNativeHeapBytes = Math.max(peakHeap, Debug.getNativeHeapAllocatedSize());
+            }
+            return generated;
+        } finally {
+            if (generator != null) generator.close();
+            for (TokenizerStream stream : streams) {
+                if (stream != null) stream.close();
+            }
+            if (generatorParams != null) generatorParams.close();
+        }
+    }
+}
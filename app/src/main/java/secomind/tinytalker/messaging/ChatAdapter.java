@@ -1,18 +1,20 @@
 package secomind.tinytalker.messaging;
 
+import android.os.Trace;
+import android.view.GestureDetector;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.widget.AppCompatTextView;
 import androidx.recyclerview.widget.RecyclerView;
 
 import secomind.tinytalker.R;
 
-import java.text.SimpleDateFormat;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * ChatAdapter is a RecyclerView adapter that manages the display of chat messages
@@ -26,6 +28,22 @@ import java.util.Locale;
  * - UserMessageViewHolder: For displaying user messages
  * - ModelMessageViewHolder: For displaying model responses
  *
+ * The list of messages is a {@link Conversation}: it only grows, at the end, so the
+ * changes are notified directly (notifyItemRangeInserted) and a message never changes
+ * position, which is its stable id. There is nothing to diff, and computing the
+ * differences would read all the messages of a long conversation from the disk.
+ * The adapter only asks for the messages on screen, that are read page by page.
+ *
+ * The answers of the model are markdown: they are formatted and laid out in the background
+ * by a {@link MessageTextCache}, so that a long answer does not stop the scrolling.
+ * While an answer is streamed, the new text is given as payload of a change
+ * ({@link #notifyTextAppended}): the ViewHolder gives it to a {@link MarkdownFormatter},
+ * which formats only the line being written, in the text of the TextView.
+ *
+ * An answer with more variants (answers generated together, see {@link ChatMessage#setVariants})
+ * shows which one is on screen below its text: a swipe on the bubble, or a tap on the
+ * indicator, shows another one.
+ *
  * @author Dennis Dosso dennis.dosso@secomind.com
  * @version 1.0
  * @see RecyclerView.Adapter
@@ -33,24 +51,48 @@ import java.util.Locale;
  *
  * Usage example:
  * <pre>
- * List<ChatMessage> messages = new ArrayList<>();
- * ChatAdapter adapter = new ChatAdapter(messages);
+ * ChatAdapter adapter = new ChatAdapter(conversation);
  * recyclerView.setAdapter(adapter);
+ * conversation.add(message);
+ * adapter.notifyItemInserted(conversation.size() - 1);
  * </pre>
  */
 public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private static final int VIEW_TYPE_USER = 1;
     private static final int VIEW_TYPE_MODEL = 2;
-    private List<ChatMessage> chatMessages;
+    private final List<ChatMessage> chatMessages;
+    // the answers of the model, laid out in the background
+    private final MessageTextCache textCache = new MessageTextCache();
 
     /**
      * Constructs a new ChatAdapter with the specified list of chat messages.
      *
-     * @param chatMessages The list of chat messages to display
+     * @param chatMessages The list of chat messages to display, that can only grow
      */
     public ChatAdapter(List<ChatMessage> chatMessages) {
         this.chatMessages = chatMessages;
+        setHasStableIds(true);
+    }
+
+    /** The messages are only appended, the position of a message never changes */
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /**
+     * Tells the adapter that some text was appended to the message, that is already displayed.
+     * Only the text of the message is updated.
+     *
+     * @param message the message that changed
+     * @param position its position in the list
+     * @param delta the text appended
+     */
+    public void notifyTextAppended(ChatMessage message, int position, String delta) {
+        if (position < chatMessages.size() && chatMessages.get(position) == message) {
+            notifyItemChanged(position, delta);
+        }
     }
 
     /**
@@ -82,7 +124,7 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         } else { // layout when the model responds
             View view = LayoutInflater.from(parent.getContext())
                     .inflate(R.layout.item_chat_other, parent, false);
-            return new ModelMessageViewHolder(view);
+            return new ModelMessageViewHolder(view, textCache);
         }
     }
 
@@ -95,22 +137,25 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
      */
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        if (position < 0 || position >= chatMessages.size()) return;
+        if (position < 0 || position >= getItemCount()) return;
 
-        // retrieve the message from the linked list
+        // retrieve the message from the list
         ChatMessage chatMessage = chatMessages.get(position);
 
         if (chatMessage == null) return;
 
         // check which instance of message we are, so we can cast it and bind the info
+        Trace.beginSection("ChatAdapter.onBindViewHolder");
         try {
             if (holder instanceof UserMessageViewHolder) {
                 ((UserMessageViewHolder) holder).bind(chatMessage);
             } else if (holder instanceof ModelMessageViewHolder) {
-                ((ModelMessageViewHolder) holder).bind(chatMessage);
+                ((ModelMessageViewHolder) holder).bind(chatMessage, position);
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            Trace.endSection();
         }
     }
 
@@ -124,6 +169,25 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         return chatMessages.size();
     }
 
+    /**
+     * Binds only the text appended to the message, if the payloads contain it.
+     *
+     * @param payloads the pieces of text appended since the last bind, in order
+     */
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || !(holder instanceof ModelMessageViewHolder)) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        Trace.beginSection("ChatAdapter.onBindViewHolder payload");
+        try {
+            ((ModelMessageViewHolder) holder).appendText(chatMessages.get(position), payloads);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
     /*  Static inner class that is used to represent the
     *   ViewHolders generated and maintained by this Adapter
     *   when the message is from the user of the app.
@@ -153,9 +217,8 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                 }
 
                 if (dateText != null && message.getTimestamp() != null) {
-                    SimpleDateFormat formatter = new SimpleDateFormat("MMMM d", Locale.getDefault());
-                    String formattedDate = formatter.format(message.getTimestamp());
-                    dateText.setText(formattedDate);
+                    // formatted once by the message, and then reused
+                    dateText.setText(message.getDay());
                     hourText.setText(message.getHour());
                 }
             } catch (Exception e) {
@@ -170,21 +233,91 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         TextView messageText;
         TextView dateText;
         TextView hourText;
+        // which of the variants of the answer is shown, if it has more than one
+        TextView variantText;
+        ChatMessage message;
+        int position;
+        final MessageTextCache textCache;
+        // formats the answer being streamed, in the text of messageText (null when it is not streaming)
+        MarkdownFormatter formatter;
 
-        ModelMessageViewHolder(View itemView) {
+        ModelMessageViewHolder(View itemView, MessageTextCache textCache) {
             super(itemView);
+            this.textCache = textCache;
             messageText = itemView.findViewById(R.id.text_gchat_message_other);
             dateText = itemView.findViewById(R.id.text_gchat_date_other);
             hourText = itemView.findViewById(R.id.text_gchat_timestamp_other);
+            variantText = itemView.findViewById(R.id.text_gchat_variant_other);
+
+            // a horizontal swipe on the bubble shows the next (to the left) or the previous variant
+            GestureDetector detector = new GestureDetector(itemView.getContext(),
+                    new GestureDetector.SimpleOnGestureListener() {
+                        @Override
+                        public boolean onDown(MotionEvent event) {
+                            return true;
+                        }
+
+                        @Override
+                        public boolean onFling(MotionEvent down, MotionEvent up, float velocityX, float velocityY) {
+                            if (Math.abs(velocityX) < 2 * Math.abs(velocityY)) return false;
+                            showVariant(message.getSelectedVariant() + (velocityX < 0 ? 1 : -1));
+                            return true;
+                        }
+                    });
+            View card = itemView.findViewById(R.id.card_gchat_message_other);
+            card.setOnTouchListener((view, event) ->
+                    message != null && message.getVariantCount() > 1 && detector.onTouchEvent(event));
+            variantText.setOnClickListener(view ->
+                    showVariant((message.getSelectedVariant() + 1) % message.getVariantCount()));
         }
 
-        void bind(ChatMessage message) {
-            messageText.setText(message.getMessage());
-            // Format and set the date
-            SimpleDateFormat formatter = new SimpleDateFormat("MMMM d", Locale.getDefault());
-            String formattedDate = formatter.format(message.getTimestamp());
-            dateText.setText(formattedDate);
+        void bind(ChatMessage message, int position) {
+            this.message = message;
+            this.position = position;
+            formatter = null;
+            textCache.setText(messageText, position, message.getMessage());
+            // the date is formatted once by the message, and then reused
+            dateText.setText(message.getDay());
             hourText.setText(message.getHour());
+            int variants = message.getVariantCount();
+            variantText.setVisibility(variants > 1 ? View.VISIBLE : View.GONE);
+            if (variants > 1) {
+                variantText.setText(itemView.getContext().getString(R.string.answer_variant,
+                        message.getSelectedVariant() + 1, variants));
+            }
+        }
+
+        private void showVariant(int index) {
+            if (index < 0 || index >= message.getVariantCount()) return;
+            message.selectVariant(index);
+            bind(message, position);
+        }
+
+        /** Formats the pieces of text streamed since the last bind */
+        void appendText(ChatMessage message, List<Object> deltas) {
+            boolean streaming = formatter != null && this.message == message;
+            int length = streaming ? formatter.getSourceLength() : 0;
+            for (Object delta : deltas) {
+                length += ((String) delta).length();
+            }
+            if (!streaming || length != message.getLength()) {
+                // the first piece, or some text was missed (e.g. the view was bound with an older text):
+                // the text of the view becomes the one of the formatter, with all the message
+                this.message = message;
+                startStreaming(message.getMessage());
+                return;
+            }
+            for (Object delta : deltas) {
+                formatter.append((String) delta);
+            }
+        }
+
+        private void startStreaming(String text) {
+            // the text laid out in the background, if any, is not wanted anymore
+            if (messageText instanceof AppCompatTextView) ((AppCompatTextView) messageText).setTextFuture(null);
+            messageText.setText("", TextView.BufferType.EDITABLE);
+            formatter = new MarkdownFormatter(messageText.getEditableText());
+            formatter.append(text);
         }
     }
 }
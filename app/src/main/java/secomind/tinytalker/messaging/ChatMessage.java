@@ -2,26 +2,119 @@ package secomind.tinytalker.messaging;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 
 public class ChatMessage {
+    // SimpleDateFormat is expensive to create and not thread safe: one per thread, created once
+    private static final ThreadLocal<SimpleDateFormat> HOUR_FORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("HH:mm", Locale.getDefault()));
+    private static final ThreadLocal<SimpleDateFormat> DAY_FORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("MMMM d", Locale.getDefault()));
+    // the text, null when pieces were streamed since it was last read: then it is built from
+    // streamed. The generation thread reads it while the UI thread appends to it (guarded by this)
     private String message;
+    // the text of a message being streamed: the pieces are appended without copying the whole text
+    private StringBuilder streamed;
     private boolean isUser;
     private Date timestamp;
+    // formatted the first time they are displayed, then reused at every bind
     private String hour;
     private String day;
+    // token ids of the message text, computed once by the tokenizer and then reused
+    // every time the message is part of a prompt (see GenerationSession)
+    private volatile int[] tokenIds;
+    // the other answers generated together with this one, the message is one of them.
+    // Null when there is only one (only the UI thread reads and changes them)
+    private String[] variants;
+    private int selectedVariant;
 
     public ChatMessage(String message, boolean isUser) {
+        this(message, isUser, new Date());
+    }
+
+    /** A message written at the given time, e.g. read from a {@link ConversationLog} */
+    public ChatMessage(String message, boolean isUser, Date timestamp) {
         this.message = message;
         this.isUser = isUser;
-        this.timestamp = new Date();
-        this.hour = formatCurrentHour(this.timestamp); // Format hour as "HH:mm"
-        this.day = getFormattedDate(this.timestamp);
+        this.timestamp = timestamp;
     }
 
-    public String getMessage() {
+    public synchronized String getMessage() {
+        if (message == null) message = streamed.toString();
         return message;
     }
 
+    /** The number of characters of the text, without building it while it is streamed */
+    public synchronized int getLength() {
+        return message != null ? message.length() : streamed.length();
+    }
+
+    /** Appends a piece of text at the end of the message.
+     * Used while the model response is being streamed, token after token:
+     * the text is built only when it is read.
+     * */
+    public synchronized void appendMessage(String delta) {
+        if (streamed == null) streamed = new StringBuilder(message);
+        streamed.append(delta);
+        this.message = null;
+        // the text changed, the tokens must be computed again
+        this.tokenIds = null;
+    }
+
+    /**
+     * Makes the message one of more alternative texts (e.g. answers generated together):
+     * the first one is shown, the others can be chosen with {@link #selectVariant}.
+     */
+    public void setVariants(String[] variants) {
+        this.variants = variants.length > 1 ? variants.clone() : null;
+        this.selectedVariant = 0;
+        if (variants.length > 0) setText(variants[0]);
+    }
+
+    /** The number of alternative texts, 1 if there are none */
+    public int getVariantCount() {
+        return variants == null ? 1 : variants.length;
+    }
+
+    /** The position of the text shown among the alternatives */
+    public int getSelectedVariant() {
+        return selectedVariant;
+    }
+
+    /** Shows another of the alternative texts */
+    public void selectVariant(int index) {
+        if (variants == null || index < 0 || index >= variants.length || index == selectedVariant) return;
+        selectedVariant = index;
+        setText(variants[index]);
+    }
+
+    /** Forgets the alternatives, the text shown stays */
+    public void keepSelectedVariant() {
+        variants = null;
+        selectedVariant = 0;
+    }
+
+    private synchronized void setText(String text) {
+        this.message = text;
+        this.streamed = null;
+        this.tokenIds = null;
+    }
+
+    /** Returns the token ids of the message, or null if it was not tokenized yet */
+    public int[] getTokenIds() {
+        return tokenIds;
+    }
+
+    public void setTokenIds(int[] tokenIds) {
+        this.tokenIds = tokenIds;
+    }
+
+    /** Returns the number of tokens of the message, or -1 if it was not tokenized yet */
+    public int getTokenCount() {
+        int[] tokens = tokenIds;
+        return tokens == null ? -1 : tokens.length;
+    }
+
     public boolean isUser() {
         return isUser;
     }
@@ -30,21 +123,26 @@ public class ChatMessage {
         return timestamp;
     }
 
+    /** The hour of the message, as "HH:mm" */
     public String getHour() {
+        if (hour == null) hour = HOUR_FORMAT.get().format(timestamp);
         return hour;
     }
 
+    /** The day of the message, as "MMMM d" (e.g. "June 10") */
+    public String getDay() {
+        if (day == null) day = DAY_FORMAT.get().format(timestamp);
+        return day;
+    }
+
     public void setHour(String hour) {
         this.hour = hour;
     }
 
     public void setTimestamp(Date timestamp) {
         this.timestamp = timestamp;
-    }
-
-    private String formatCurrentHour(Date timestamp) {
-        SimpleDateFormat hourFormat = new SimpleDateFormat("HH:mm");
-        return hourFormat.format(timestamp);
+        this.hour = null;
+        this.day = null;
     }
 
     public String getFormattedDate(Date timestamp) {
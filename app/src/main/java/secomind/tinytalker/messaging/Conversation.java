@@ -0,0 +1,368 @@
+package secomind.tinytalker.messaging;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The messages of a conversation, as a list that can only grow.
+ *
+ * The messages of the previous sessions are read from a {@link ConversationLog},
+ * in pages of {@link #PAGE_SIZE} messages, only when they are needed (e.g. when the user
+ * scrolls to them); the last pages read are kept in a small cache. So a conversation with
+ * 50k messages opens as fast as one with 50, and does not take 50k messages of memory.
+ * The messages added in this session are kept in memory.
+ *
+ * The messages added are written to the log on a background thread, in order, as soon as
+ * they are complete: an answer being streamed is added with {@link #addStreaming} and
+ * written when {@link #complete} is called. The UI thread never waits for the disk.
+ *
+ * The messages written are also added to a {@link SearchIndex}, on the same thread,
+ * so they can be found with {@link #search}. The messages of the log that are missing
+ * from the index (e.g. the app was killed) are added again when the conversation is opened.
+ *
+ * The files are opened on the same thread, so the UI thread does not wait for them: the
+ * conversation is empty until the {@link OpenListener} is told that its messages are there,
+ * and no message can be added before. A conversation closed keeps writing on its thread for
+ * a while: opening it again waits for that thread to be over, so two writers never share
+ * the same files. If the files cannot be opened, the listener is told, and nothing is written:
+ * the conversation can be opened again later, with all its messages.
+ *
+ * The list is changed only on the UI thread. Any thread can read it through a
+ * {@link #snapshot()}, e.g. the generation thread.
+ */
+public class Conversation extends AbstractList<ChatMessage> {
+
+    private static final String TAG = "secomind.tinytalker.Conversation";
+
+    private static final String INDEX_EXTENSION = ".search";
+    // how often the log tells that open() is still waiting for the writer closed just before
+    private static final long CLOSE_WAIT_SECONDS = 10;
+
+    // the writers of the conversations closed but still writing, by file (guarded by the map)
+    private static final Map<File, ExecutorService> closingWriters = new HashMap<>();
+
+    /** Receives the result of the opening of a saved conversation, on the UI thread */
+    public interface OpenListener {
+        /** The messages saved on the disk are in the conversation, new messages can be added */
+        void onOpened(Conversation conversation);
+
+        /** The files cannot be opened: the conversation stays empty, and nothing can be added */
+        void onOpenFailed(Conversation conversation, IOException e);
+    }
+
+    /** Receives the result of a search, on the UI thread */
+    public interface SearchListener {
+        /**
+         * @param query the query searched
+         * @param positions the positions of the messages found, in increasing order
+         */
+        void onSearchResult(String query, int[] positions);
+    }
+
+    // messages read from the log at a time
+    public static final int PAGE_SIZE = 64;
+    // pages kept in memory, a few screens of messages
+    private static final int CACHED_PAGES = 16;
+
+    // set on the writer thread when the files are open, read by the UI thread only after that
+    private ConversationLog log;
+    // where the conversation is saved, null if it is not
+    private final File file;
+    // 0 until the conversation is open (only the UI thread changes it)
+    private int logSize = 0;
+    // the messages can be read and added (only the UI thread changes it)
+    private boolean opened;
+    private final LruCache<Integer, ChatMessage[]> pages = new LruCache<>(CACHED_PAGES);
+    // messages added in this session, after the ones in the log
+    private final List<ChatMessage> added = new CopyOnWriteArrayList<>();
+    // added messages not complete yet: they and the ones after them are not written yet
+    private final Set<ChatMessage> streaming = Collections.newSetFromMap(new IdentityHashMap<>());
+    // index in added of the first message not yet given to the writer
+    private int unwritten = 0;
+    private final ExecutorService writer;
+    // the words of the written messages, null if they cannot be searched (set with the log)
+    private SearchIndex index;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Conversation(File file) {
+        this.file = file;
+        this.writer = file == null ? null : Executors.newSingleThreadExecutor();
+        this.opened = file == null;
+    }
+
+    /**
+     * Opens the conversation saved in the directory with the given name. The files are opened
+     * in the background: the conversation returned is empty until the listener is told it is open.
+     */
+    @MainThread
+    public static Conversation open(File directory, String name, OpenListener listener) {
+        Conversation conversation = new Conversation(new File(directory, name).getAbsoluteFile());
+        conversation.writer.execute(() -> conversation.openFiles(directory, name, listener));
+        return conversation;
+    }
+
+    /** A conversation that is not saved on the disk (and cannot be searched) */
+    public static Conversation inMemory() {
+        return new Conversation(null);
+    }
+
+    /** Opens the log and the index (on the writer thread), then tells the listener */
+    private void openFiles(File directory, String name, OpenListener listener) {
+        ConversationLog openedLog;
+        try {
+            awaitClosed();
+            openedLog = ConversationLog.open(directory, name);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the conversation " + name + ": " + e.getMessage());
+            mainHandler.post(() -> listener.onOpenFailed(this, e));
+            return;
+        }
+        try {
+            index = SearchIndex.open(new File(directory, name + INDEX_EXTENSION));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the index of " + name + ", it cannot be searched: " + e.getMessage());
+        }
+        log = openedLog;
+        int size = openedLog.size();
+        mainHandler.post(() -> {
+            logSize = size;
+            opened = true;
+            listener.onOpened(this);
+        });
+        // the searches and the new messages wait for it, on this thread
+        if (index != null) indexLog(size);
+    }
+
+    /** True once the messages saved on the disk can be read, and new ones added */
+    public boolean isOpen() {
+        return opened;
+    }
+
+    @Override
+    public ChatMessage get(int index) {
+        if (index >= logSize) return added.get(index - logSize);
+        if (index < 0) throw new IndexOutOfBoundsException("Message " + index);
+
+        int page = index / PAGE_SIZE;
+        ChatMessage[] messages = pages.get(page);
+        if (messages == null) {
+            int first = page * PAGE_SIZE;
+            messages = new ChatMessage[Math.min(PAGE_SIZE, logSize - first)];
+            log.read(first, messages);
+            pages.put(page, messages);
+        }
+        return messages[index % PAGE_SIZE];
+    }
+
+    @Override
+    public int size() {
+        return logSize + added.size();
+    }
+
+    /** Adds a complete message at the end of the conversation */
+    @MainThread
+    @Override
+    public boolean add(ChatMessage message) {
+        if (!opened) throw new IllegalStateException("The conversation is not open");
+        added.add(message);
+        write();
+        return true;
+    }
+
+    /**
+     * Adds a message whose text is still being streamed.
+     * It will be saved when {@link #complete} is called.
+     */
+    @MainThread
+    public void addStreaming(ChatMessage message) {
+        if (!opened) throw new IllegalStateException("The conversation is not open");
+        streaming.add(message);
+        added.add(message);
+    }
+
+    /** The text of the message will not change anymore: it can be saved */
+    @MainThread
+    public void complete(ChatMessage message) {
+        if (streaming.remove(message)) write();
+    }
+
+    /**
+     * The messages in the conversation right now. Later additions are not seen,
+     * so it can be read from another thread while the UI thread adds messages.
+     */
+    @MainThread
+    public List<ChatMessage> snapshot() {
+        int size = size();
+        return new AbstractList<ChatMessage>() {
+            @Override
+            public ChatMessage get(int index) {
+                if (index >= size) throw new IndexOutOfBoundsException("Message " + index + " of " + size);
+                return Conversation.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /** Frees the pages of messages read from the log, they are read again when needed */
+    @MainThread
+    public void trimMemory() {
+        pages.evictAll();
+    }
+
+    /**
+     * Searches the messages that contain all the words of the query, in the background.
+     * The messages still being written are searched after they are written,
+     * the answers being streamed are not found.
+     *
+     * @param listener receives the positions of the messages found, on the UI thread
+     */
+    @MainThread
+    public void search(String query, SearchListener listener) {
+        if (!opened || index == null || writer.isShutdown()) {
+            listener.onSearchResult(query, new int[0]);
+            return;
+        }
+        writer.execute(() -> {
+            Trace.beginSection("search");
+            long begin = System.nanoTime();
+            int[] positions;
+            try {
+                positions = index.search(query);
+            } finally {
+                Trace.endSection();
+            }
+            Log.d(TAG, "Found " + positions.length + " messages in " + (System.nanoTime() - begin) / 1000 + " us");
+            mainHandler.post(() -> listener.onSearchResult(query, positions));
+        });
+    }
+
+    /**
+     * Writes the pending messages, and closes the log when they are on the disk.
+     * A conversation opened again on the same files waits for it.
+     */
+    @MainThread
+    public void close() {
+        if (writer == null || writer.isShutdown()) return;
+        synchronized (closingWriters) {
+            closingWriters.put(file, writer);
+        }
+        writer.execute(() -> {
+            try {
+                if (index != null) index.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to save the index: " + e.getMessage());
+            }
+            try {
+                // null if it could not be opened
+                if (log != null) {
+                    log.sync();
+                    log.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the conversation: " + e.getMessage());
+            }
+            synchronized (closingWriters) {
+                closingWriters.remove(file, writer);
+            }
+        });
+        writer.shutdown();
+    }
+
+    /**
+     * Waits (on the writer thread) for the writer of an earlier conversation saved in the same
+     * file, if it was closed and is still writing. Usually it is over already: it has at most
+     * a few messages to write.
+     */
+    private void awaitClosed() throws IOException {
+        ExecutorService closing;
+        synchronized (closingWriters) {
+            closing = closingWriters.get(file);
+        }
+        // this conversation may have been closed before it was open
+        if (closing == null || closing == writer) return;
+        try {
+            while (!closing.awaitTermination(CLOSE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Still waiting for the conversation to be closed before opening it again");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the conversation to be closed");
+        }
+    }
+
+    /** Adds to the index the messages of the log that are not in it (on the writer thread) */
+    private void indexLog(int size) {
+        if (index.size() > size) {
+            // the log lost some messages the index has: start again
+            Log.w(TAG, "The index is ahead of the conversation, indexing it again");
+            index.clear();
+        }
+        if (index.size() == size) return;
+
+        long begin = System.currentTimeMillis();
+        int from = index.size();
+        ChatMessage[] page = new ChatMessage[PAGE_SIZE];
+        try {
+            for (int first = from; first < size; first += PAGE_SIZE) {
+                int count = Math.min(PAGE_SIZE, size - first);
+                if (count < PAGE_SIZE) page = new ChatMessage[count];
+                log.read(first, page);
+                for (int i = 0; i < count; i++) {
+                    index.add(first + i, page[i].getMessage());
+                }
+            }
+            Log.d(TAG, "Indexed " + (size - from) + " messages in " + (System.currentTimeMillis() - begin) + " ms");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to index the conversation: " + e.getMessage());
+        }
+    }
+
+    /** Gives to the writer the messages that are complete, in order */
+    private void write() {
+        while (unwritten < added.size() && !streaming.contains(added.get(unwritten))) {
+            int position = logSize + unwritten;
+            ChatMessage message = added.get(unwritten++);
+            if (writer == null) continue;
+            writer.execute(() -> {
+                try {
+                    log.append(message);
+                    // if a message could not be saved, the ones after it are not indexed
+                    if (index != null && index.size() == position) index.add(position, message.getMessage());
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to save the message: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "Conversation of " + size() + " messages";
+    }
+}
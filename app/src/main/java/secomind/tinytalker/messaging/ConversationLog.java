@@ -0,0 +1,192 @@
+package secomind.tinytalker.messaging;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * The messages of a conversation, saved on the disk in two files:
+ * <pre>
+ * name.log  the messages, one after the other, never changed once written:
+ *           [int length][byte flags][long timestamp][text, UTF-8]
+ *           (length counts the bytes after itself, flags is 1 for the messages of the user)
+ * name.idx  where every message begins in name.log: one int per message
+ * </pre>
+ * (so a conversation can be at most 2 GB long).
+ *
+ * Both files are only appended to. When the log is opened, what is already on the disk
+ * is memory mapped, and the messages are read (decoded) only when they are asked for:
+ * opening a conversation takes the same time whatever its length.
+ * The messages appended after the opening are written to the files, but they are not
+ * readable from here: the caller keeps them in memory (see {@link Conversation}).
+ *
+ * If the app was killed while writing, the half written message at the end of the files
+ * is dropped at the next opening.
+ *
+ * The reads can be done from any thread. The appends must be done from one thread at a time.
+ */
+public class ConversationLog {
+
+    private static final String TAG = "secomind.tinytalker.ConversationLog";
+
+    private static final String LOG_EXTENSION = ".log";
+    private static final String INDEX_EXTENSION = ".idx";
+
+    private static final int FLAG_USER = 1;
+    // flags and timestamp, after the length
+    private static final int HEADER_SIZE = 1 + 8;
+
+    private final FileChannel logChannel;
+    private final FileChannel indexChannel;
+    // what was on the disk at the opening
+    private final MappedByteBuffer mappedLog;
+    private final IntBuffer mappedIndex;
+    private final int size;
+    // end of the log, where the next message is written (only used by the appending thread)
+    private long logEnd;
+
+    private ConversationLog(FileChannel logChannel, FileChannel indexChannel, int size, long logEnd) throws IOException {
+        this.logChannel = logChannel;
+        this.indexChannel = indexChannel;
+        this.size = size;
+        this.logEnd = logEnd;
+        this.mappedLog = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, logEnd);
+        this.mappedIndex = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, 4L * size).asIntBuffer();
+    }
+
+    /**
+     * Opens the conversation with the given name, creating its files if they do not exist.
+     *
+     * @param directory where the files of the conversations are
+     * @param name the name of the conversation, the files are name.log and name.idx
+     */
+    public static ConversationLog open(File directory, String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        FileChannel logChannel = new RandomAccessFile(new File(directory, name + LOG_EXTENSION), "rw").getChannel();
+        FileChannel indexChannel = null;
+        try {
+            indexChannel = new RandomAccessFile(new File(directory, name + INDEX_EXTENSION), "rw").getChannel();
+
+            // drop what was not completely written: first the index entries pointing
+            // outside of the log, then the bytes of the log after the last indexed message
+            long logSize = logChannel.size();
+            int size = (int) (indexChannel.size() / 4);
+            long logEnd = 0;
+            ByteBuffer entry = ByteBuffer.allocate(4);
+            while (size > 0) {
+                int offset = readInt(indexChannel, 4L * (size - 1), entry);
+                if (offset >= 0 && offset + 4L <= logSize) {
+                    int length = readInt(logChannel, offset, entry);
+                    long end = offset + 4L + length;
+                    if (length >= HEADER_SIZE && end <= logSize) {
+                        logEnd = end;
+                        break;
+                    }
+                }
+                size--;
+            }
+            if (indexChannel.size() != 4L * size || logSize != logEnd) {
+                Log.w(TAG, "Dropping a message not completely written in " + name);
+                indexChannel.truncate(4L * size);
+                logChannel.truncate(logEnd);
+            }
+            return new ConversationLog(logChannel, indexChannel, size, logEnd);
+        } catch (IOException | RuntimeException e) {
+            logChannel.close();
+            if (indexChannel != null) indexChannel.close();
+            throw e;
+        }
+    }
+
+    /** The number of messages that were on the disk at the opening, and that can be read */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reads some consecutive messages. Only the messages on the disk at the opening can be read.
+     *
+     * @param first the index of the first message
+     * @param messages where the messages are put, as many as its length
+     */
+    public void read(int first, ChatMessage[] messages) {
+        if (first < 0 || first + messages.length > size) {
+            throw new IndexOutOfBoundsException("Messages " + first + ".." + (first + messages.length) + " of " + size);
+        }
+        // a private view, so that more threads can read at the same time
+        ByteBuffer log = mappedLog.duplicate();
+        byte[] text = new byte[256];
+        for (int i = 0; i < messages.length; i++) {
+            log.position(mappedIndex.get(first + i));
+            int length = log.getInt() - HEADER_SIZE;
+            boolean isUser = (log.get() & FLAG_USER) != 0;
+            long timestamp = log.getLong();
+            if (text.length < length) text = new byte[Math.max(length, 2 * text.length)];
+            log.get(text, 0, length);
+            messages[i] = new ChatMessage(new String(text, 0, length, StandardCharsets.UTF_8), isUser, new Date(timestamp));
+        }
+    }
+
+    /**
+     * Appends a message at the end of the files. The message is not forced to the disk
+     * (see {@link #sync()}). Call it always from the same thread.
+     */
+    public void append(ChatMessage message) throws IOException {
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        if (logEnd + 4 + HEADER_SIZE + text.length > Integer.MAX_VALUE) {
+            throw new IOException("The conversation is too long");
+        }
+        ByteBuffer record = ByteBuffer.allocate(4 + HEADER_SIZE + text.length);
+        record.putInt(HEADER_SIZE + text.length);
+        record.put((byte) (message.isUser() ? FLAG_USER : 0));
+        record.putLong(message.getTimestamp().getTime());
+        record.put(text);
+        record.flip();
+        writeFully(logChannel, record, logEnd);
+
+        // the index is written after the message: if it is there, the message is complete
+        ByteBuffer entry = ByteBuffer.allocate(4);
+        entry.putInt((int) logEnd);
+        entry.flip();
+        writeFully(indexChannel, entry, indexChannel.size());
+        logEnd += record.capacity();
+    }
+
+    /** Forces the appended messages to the disk */
+    public void sync() throws IOException {
+        logChannel.force(false);
+        indexChannel.force(false);
+    }
+
+    public void close() throws IOException {
+        try {
+            logChannel.close();
+        } finally {
+            indexChannel.close();
+        }
+    }
+
+    private static int readInt(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return -1;
+        }
+        return buffer.getInt(0);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
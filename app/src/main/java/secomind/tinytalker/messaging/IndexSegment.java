@@ -0,0 +1,315 @@
+package secomind.tinytalker.messaging;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A piece of the {@link SearchIndex}: the words of the messages from first to end (excluded),
+ * saved in one file that is never changed once written:
+ * <pre>
+ * for every word, in order:  [word, UTF-8][int message id]*count   (the ids in increasing order)
+ * for every word, in order:  [int offset of the word][int length of the word][int count]
+ * [int number of words][int offset of the table above]
+ * </pre>
+ * The file is memory mapped, and a word is found with a binary search in the table,
+ * so opening a segment does not read it, and a lookup reads a few pages of it.
+ *
+ * The name of the file is level-first-end.seg: the level counts how many times
+ * the messages were merged (see {@link SearchIndex}).
+ */
+class IndexSegment {
+
+    static final String EXTENSION = ".seg";
+
+    private static final int ENTRY_SIZE = 12;
+    private static final int FOOTER_SIZE = 8;
+
+    final int level;
+    final int first;
+    final int end;
+    final File file;
+    private final ByteBuffer data;
+    private final int termCount;
+    private final int entriesOffset;
+
+    private IndexSegment(File file, int level, int first, int end) throws IOException {
+        this.file = file;
+        this.level = level;
+        this.first = first;
+        this.end = end;
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Broken index segment " + file.getName());
+            }
+            // the mapping stays valid when the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        termCount = data.getInt(data.capacity() - FOOTER_SIZE);
+        entriesOffset = data.getInt(data.capacity() - FOOTER_SIZE + 4);
+        if (termCount < 0 || entriesOffset < 0
+                || entriesOffset + (long) ENTRY_SIZE * termCount != data.capacity() - FOOTER_SIZE) {
+            throw new IOException("Broken index segment " + file.getName());
+        }
+    }
+
+    /**
+     * Opens the segment in the file, whose name says which messages it contains.
+     * Returns null if the file is not a segment.
+     */
+    static IndexSegment open(File file) throws IOException {
+        String name = file.getName();
+        if (!name.endsWith(EXTENSION)) return null;
+        String[] parts = name.substring(0, name.length() - EXTENSION.length()).split("-");
+        if (parts.length != 3) return null;
+        try {
+            return new IndexSegment(file, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Merges the segments, that must be consecutive and in order, in a new one of the next level */
+    static IndexSegment merge(File directory, List<IndexSegment> segments) throws IOException {
+        IndexSegment firstSegment = segments.get(0);
+        IndexSegment lastSegment = segments.get(segments.size() - 1);
+        Writer writer = new Writer(directory, firstSegment.level + 1, firstSegment.first, lastSegment.end);
+        try {
+            // the words of all the segments, in order; for the same word the older segment comes first,
+            // so that the ids stay in increasing order
+            PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+            for (int i = 0; i < segments.size(); i++) {
+                Cursor cursor = new Cursor(segments.get(i), i);
+                if (cursor.next()) cursors.add(cursor);
+            }
+            byte[] previous = null;
+            while (!cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                if (previous == null || !Arrays.equals(previous, cursor.term)) {
+                    writer.addTerm(cursor.term);
+                    previous = cursor.term;
+                }
+                int offset = cursor.segment.postingsOffset(cursor.entry);
+                int count = cursor.segment.count(cursor.entry);
+                for (int i = 0; i < count; i++) {
+                    writer.addId(cursor.segment.data.getInt(offset + 4 * i));
+                }
+                if (cursor.next()) cursors.add(cursor);
+            }
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    int getTermCount() {
+        return termCount;
+    }
+
+    /** The entry of the word, -1 if the segment does not contain it */
+    int find(byte[] term) {
+        int entry = lowerBound(term);
+        return entry < termCount && compareTerm(entry, term) == 0 ? entry : -1;
+    }
+
+    /** The first entry whose word is not less than the given one (termCount if none) */
+    int lowerBound(byte[] term) {
+        int low = 0;
+        int high = termCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTerm(middle, term) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** True if the word of the entry begins with the prefix */
+    boolean startsWith(int entry, byte[] prefix) {
+        int offset = termOffset(entry);
+        if (termLength(entry) < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(offset + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /** How many messages contain the word of the entry */
+    int count(int entry) {
+        return data.getInt(entriesOffset + ENTRY_SIZE * entry + 8);
+    }
+
+    /** Adds the ids of the messages containing the word of the entry */
+    void readIds(int entry, SearchIndex.Ids ids) {
+        ByteBuffer view = data.duplicate();
+        view.position(postingsOffset(entry));
+        int count = count(entry);
+        ids.ensureCapacity(ids.size + count);
+        // copied all together, not int by int
+        view.asIntBuffer().get(ids.values, ids.size, count);
+        ids.size += count;
+    }
+
+    byte[] term(int entry) {
+        byte[] term = new byte[termLength(entry)];
+        ByteBuffer view = data.duplicate();
+        view.position(termOffset(entry));
+        view.get(term);
+        return term;
+    }
+
+    boolean delete() {
+        return file.delete();
+    }
+
+    private int termOffset(int entry) {
+        return data.getInt(entriesOffset + ENTRY_SIZE * entry);
+    }
+
+    private int termLength(int entry) {
+        return data.getInt(entriesOffset + ENTRY_SIZE * entry + 4);
+    }
+
+    private int postingsOffset(int entry) {
+        return termOffset(entry) + termLength(entry);
+    }
+
+    /** Compares the word of the entry with the given one, byte by byte (as the words are sorted) */
+    private int compareTerm(int entry, byte[] term) {
+        int offset = termOffset(entry);
+        int length = termLength(entry);
+        for (int i = 0; i < Math.min(length, term.length); i++) {
+            int difference = (data.get(offset + i) & 0xff) - (term[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return length - term.length;
+    }
+
+    /** The order of the words in the segments: UTF-8 bytes compared as unsigned */
+    static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return a.length - b.length;
+    }
+
+    static String fileName(int level, int first, int end) {
+        return level + "-" + first + "-" + end + EXTENSION;
+    }
+
+    /** Walks the words of a segment during a merge */
+    private static class Cursor implements Comparable<Cursor> {
+        final IndexSegment segment;
+        final int order;
+        int entry = -1;
+        byte[] term;
+
+        Cursor(IndexSegment segment, int order) {
+            this.segment = segment;
+            this.order = order;
+        }
+
+        boolean next() {
+            if (++entry >= segment.termCount) return false;
+            term = segment.term(entry);
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int difference = compare(term, other.term);
+            return difference != 0 ? difference : order - other.order;
+        }
+    }
+
+    /**
+     * Writes a new segment. The words must be added in order ({@link #compare}),
+     * each followed by the ids of its messages, in increasing order.
+     * The file appears with its name only when it is complete.
+     */
+    static class Writer {
+        private final File file;
+        private final File temporary;
+        private final int level;
+        private final int first;
+        private final int end;
+        private final FileOutputStream stream;
+        private final DataOutputStream output;
+        // offset, length and count of every word
+        private int[] entries = new int[3 * 64];
+        private int termCount = 0;
+        private int count = 0;
+
+        Writer(File directory, int level, int first, int end) throws IOException {
+            this.level = level;
+            this.first = first;
+            this.end = end;
+            this.file = new File(directory, fileName(level, first, end));
+            this.temporary = new File(directory, file.getName() + SearchIndex.TEMPORARY_EXTENSION);
+            this.stream = new FileOutputStream(temporary);
+            this.output = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        }
+
+        void addTerm(byte[] term) throws IOException {
+            endTerm();
+            if (3 * termCount + 3 > entries.length) entries = Arrays.copyOf(entries, entries.length * 2);
+            entries[3 * termCount] = output.size();
+            entries[3 * termCount + 1] = term.length;
+            output.write(term);
+            count = 0;
+            termCount++;
+        }
+
+        void addId(int id) throws IOException {
+            output.writeInt(id);
+            count++;
+        }
+
+        IndexSegment finish() throws IOException {
+            endTerm();
+            int entriesOffset = output.size();
+            for (int i = 0; i < 3 * termCount; i++) {
+                output.writeInt(entries[i]);
+            }
+            output.writeInt(termCount);
+            output.writeInt(entriesOffset);
+            output.flush();
+            // on the disk before it gets its name
+            stream.getFD().sync();
+            output.close();
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("Unable to write " + file.getName());
+            }
+            return new IndexSegment(file, level, first, end);
+        }
+
+        void abort() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // nothing to save
+            }
+            temporary.delete();
+        }
+
+        private void endTerm() {
+            if (termCount > 0) entries[3 * termCount - 1] = count;
+        }
+    }
+}
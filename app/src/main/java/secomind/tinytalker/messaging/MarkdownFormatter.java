@@ -0,0 +1,195 @@
+package secomind.tinytalker.messaging;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+
+/**
+ * Turns the markdown written by the model into styled text, while it is being streamed.
+ * Only what the model usually writes is understood:
+ * <pre>
+ * # title, ## subtitle...    bigger and bold
+ * - item, * item             bullet list
+ * **bold**, *italic*, `code`
+ * ```                        code block (the lines up to the next ```)
+ * </pre>
+ * Anything else is left as it is.
+ *
+ * The text is formatted one line at a time, directly in an Editable (e.g. the one of the
+ * TextView): a complete line is formatted once and never looked at again, only the line
+ * being written is formatted again when new text arrives. So the cost of a token does not
+ * depend on the length of the message, and the TextView lays out again only the last paragraph.
+ *
+ * Usage example:
+ * <pre>
+ * textView.setText("", TextView.BufferType.EDITABLE);
+ * MarkdownFormatter formatter = new MarkdownFormatter(textView.getEditableText());
+ * formatter.append(delta); // for every piece of the answer
+ * </pre>
+ */
+public class MarkdownFormatter {
+
+    private static final String FENCE = "```";
+    private static final String BULLET = "\u2022 ";
+    // light grey behind the code
+    private static final int CODE_BACKGROUND = 0x18000000;
+
+    private final Editable output;
+    // the line being written, not formatted for good yet
+    private final StringBuilder line = new StringBuilder();
+    // end of the formatted complete lines in the output: the rest is the line being written
+    private int committedLength = 0;
+    // characters of markdown received
+    private int sourceLength = 0;
+    private boolean inCodeBlock = false;
+
+    /** @param output where the formatted text is written, it should be empty */
+    public MarkdownFormatter(Editable output) {
+        this.output = output;
+    }
+
+    /** Formats a whole text at once, e.g. a message that is complete */
+    public static Spanned format(String markdown) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        new MarkdownFormatter(text).append(markdown);
+        return text;
+    }
+
+    /** The number of characters of markdown received so far */
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    /** Adds a piece of the markdown, formatting the lines it completes and the one being written */
+    public void append(CharSequence delta) {
+        sourceLength += delta.length();
+        // every newline of the delta completes the line being written
+        int begin = 0;
+        for (int i = 0; i < delta.length(); i++) {
+            if (delta.charAt(i) != '\n') continue;
+            line.append(delta, begin, i);
+            commitLine();
+            begin = i + 1;
+        }
+        line.append(delta, begin, delta.length());
+
+        // the line being written: formatted again, since a marker may be closed later
+        SpannableStringBuilder tail = new SpannableStringBuilder();
+        formatLine(line, tail);
+        output.replace(committedLength, output.length(), tail);
+    }
+
+    /** Formats the complete line for good */
+    private void commitLine() {
+        SpannableStringBuilder formatted = new SpannableStringBuilder();
+        if (startsWith(line, FENCE)) {
+            // the fence (and the name of the language) is not shown
+            inCodeBlock = !inCodeBlock;
+        } else {
+            formatLine(line, formatted);
+            formatted.append('\n');
+        }
+        output.replace(committedLength, output.length(), formatted);
+        committedLength = output.length();
+        line.setLength(0);
+    }
+
+    /** Appends the line to the text, with its style */
+    private void formatLine(CharSequence source, SpannableStringBuilder text) {
+        int start = text.length();
+        if (inCodeBlock) {
+            text.append(source);
+            setCodeSpans(text, start, text.length());
+            return;
+        }
+
+        int level = 0;
+        while (level < source.length() && level < 6 && source.charAt(level) == '#') level++;
+        if (level > 0 && level < source.length() && source.charAt(level) == ' ') {
+            formatInline(source, level + 1, text);
+            // from 1.4 times for # down to the normal size
+            float size = Math.max(1f, 1.5f - 0.1f * level);
+            text.setSpan(new RelativeSizeSpan(size), start, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new StyleSpan(Typeface.BOLD), start, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return;
+        }
+
+        int indent = 0;
+        while (indent < source.length() && source.charAt(indent) == ' ') indent++;
+        if (indent + 1 < source.length() && (source.charAt(indent) == '-' || source.charAt(indent) == '*')
+                && source.charAt(indent + 1) == ' ') {
+            text.append(source, 0, indent).append(BULLET);
+            formatInline(source, indent + 2, text);
+            return;
+        }
+        formatInline(source, 0, text);
+    }
+
+    /** Appends the line from the given index, with the **bold**, *italic* and `code` parts styled */
+    private static void formatInline(CharSequence source, int from, SpannableStringBuilder text) {
+        int i = from;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '`') {
+                int close = indexOf(source, "`", i + 1);
+                if (close > i + 1) {
+                    int start = text.length();
+                    text.append(source, i + 1, close);
+                    setCodeSpans(text, start, text.length());
+                    i = close + 1;
+                    continue;
+                }
+            } else if (c == '*' && i + 1 < source.length() && source.charAt(i + 1) == '*') {
+                int close = indexOf(source, "**", i + 2);
+                if (close > i + 2) {
+                    int start = text.length();
+                    text.append(source, i + 2, close);
+                    text.setSpan(new StyleSpan(Typeface.BOLD), start, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    i = close + 2;
+                    continue;
+                }
+            } else if (c == '*' && i + 1 < source.length() && source.charAt(i + 1) != ' ') {
+                int close = indexOf(source, "*", i + 1);
+                if (close > i + 1) {
+                    int start = text.length();
+                    text.append(source, i + 1, close);
+                    text.setSpan(new StyleSpan(Typeface.ITALIC), start, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    i = close + 1;
+                    continue;
+                }
+            }
+            // not a marker, or a marker that is not closed (yet)
+            text.append(c);
+            i++;
+        }
+    }
+
+    private static void setCodeSpans(SpannableStringBuilder text, int start, int end) {
+        if (start == end) return;
+        text.setSpan(new TypefaceSpan("monospace"), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new BackgroundColorSpan(CODE_BACKGROUND), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix) {
+        return text.length() >= prefix.length() && matches(text, prefix, 0);
+    }
+
+    private static int indexOf(CharSequence text, String marker, int from) {
+        for (int i = from; i + marker.length() <= text.length(); i++) {
+            if (matches(text, marker, i)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean matches(CharSequence text, String marker, int at) {
+        for (int i = 0; i < marker.length(); i++) {
+            if (text.charAt(at + i) != marker.charAt(i)) return false;
+        }
+        return true;
+    }
+}
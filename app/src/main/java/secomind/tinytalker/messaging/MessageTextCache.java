@@ -0,0 +1,105 @@
+package secomind.tinytalker.messaging;
+
+import android.os.Process;
+import android.os.Trace;
+import android.util.LruCache;
+import android.widget.TextView;
+
+import androidx.annotation.MainThread;
+import androidx.appcompat.widget.AppCompatTextView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Lays out the text of the messages in the background, so that binding a long answer
+ * does not measure thousands of characters on the UI thread while the user scrolls.
+ *
+ * The markdown of the message is formatted ({@link MarkdownFormatter}) and measured with
+ * PrecomputedTextCompat on a background thread; the TextView receives it as a future, that
+ * is usually ready before the view is measured (the RecyclerView binds the next items
+ * ahead of time). The results are kept in a small cache, by message, so scrolling back to
+ * a message costs nothing. A PrecomputedText does not depend on the width of the view (the
+ * lines are broken when the view is laid out), only on the font, the size and the breaking
+ * of the text, that are checked when the message is bound.
+ *
+ * A message whose text or text metrics changed (e.g. another variant was chosen, or the
+ * font size) is laid out again.
+ * The messages being streamed should not go through here: their text changes at every frame.
+ */
+public class MessageTextCache {
+
+    // a few screens of messages
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    // one thread for all the chats: the layouts are done in the order they are asked
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable ->
+            new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "message layout"));
+
+    /** A text laid out for a view, or being laid out */
+    private static final class Entry {
+        final String source;
+        final PrecomputedTextCompat.Params params;
+        final Future<PrecomputedTextCompat> text;
+
+        Entry(String source, PrecomputedTextCompat.Params params, Future<PrecomputedTextCompat> text) {
+            this.source = source;
+            this.params = params;
+            this.text = text;
+        }
+    }
+
+    private final LruCache<Long, Entry> entries;
+
+    public MessageTextCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public MessageTextCache(int maxEntries) {
+        entries = new LruCache<>(maxEntries);
+    }
+
+    /**
+     * Shows the message in the view, formatted and laid out in the background.
+     *
+     * @param id what tells the message apart from the others (e.g. its position)
+     * @param markdown the text of the message
+     */
+    @MainThread
+    public void setText(TextView view, long id, String markdown) {
+        if (!(view instanceof AppCompatTextView)) {
+            view.setText(MarkdownFormatter.format(markdown));
+            return;
+        }
+        // the font, the size and the breaking of the view
+        PrecomputedTextCompat.Params params = TextViewCompat.getTextMetricsParams(view);
+        Entry entry = entries.get(id);
+        // a message read again from the disk is another object, with the same text
+        if (entry == null || !entry.source.equals(markdown) || !entry.params.equals(params)) {
+            FutureTask<PrecomputedTextCompat> task = new FutureTask<>(() -> {
+                Trace.beginSection("MessageTextCache.precompute");
+                try {
+                    return PrecomputedTextCompat.create(MarkdownFormatter.format(markdown), params);
+                } finally {
+                    Trace.endSection();
+                }
+            });
+            EXECUTOR.execute(task);
+            entry = new Entry(markdown, params, task);
+            entries.put(id, entry);
+        }
+        ((AppCompatTextView) view).setTextFuture(entry.text);
+    }
+
+    /** Forgets all the texts, e.g. when the size of the font changed */
+    public void clear() {
+        entries.evictAll();
+    }
+}
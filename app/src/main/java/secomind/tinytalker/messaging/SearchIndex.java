@@ -0,0 +1,361 @@
+package secomind.tinytalker.messaging;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A full-text index of the messages of a conversation: for every word, the ids
+ * (positions in the conversation) of the messages that contain it.
+ *
+ * The index grows with the conversation. The new messages are kept in memory until
+ * there are {@link #FLUSH_MESSAGES} of them, then they are written to a new
+ * {@link IndexSegment}, a memory mapped file with the words in order and the ids as plain ints.
+ * When there are {@link #MERGE_FACTOR} segments of the same level, they are merged in one
+ * segment of the next level: so the segments are few (a few tens for millions of messages),
+ * and every message is written again only a few times.
+ *
+ * A search looks for every word with a binary search in every segment, and intersects
+ * the ids. The last word of the query also finds the longer words that begin with it
+ * (e.g. "run" finds "running").
+ *
+ * The segments are written to a temporary file and renamed when complete. If the app is killed,
+ * the messages in memory are lost: {@link #size()} tells from where the caller has to add them again.
+ *
+ * Only one thread adds the messages; any thread can search.
+ */
+public class SearchIndex {
+
+    private static final String TAG = "secomind.tinytalker.SearchIndex";
+
+    static final String TEMPORARY_EXTENSION = ".tmp";
+
+    // messages kept in memory before they are written to a segment
+    public static final int FLUSH_MESSAGES = 1024;
+    // segments of the same level that are merged together
+    public static final int MERGE_FACTOR = 8;
+    // longer words are cut (e.g. links)
+    private static final int MAX_TERM_LENGTH = 32;
+    // a shorter last word is not used as a prefix, it would match too many words
+    private static final int MIN_PREFIX_LENGTH = 3;
+
+    private final File directory;
+    // the segments, in the order of the messages. Replaced, never changed
+    private volatile List<IndexSegment> segments;
+    // the words of the messages not yet in a segment (guards also the swap of the segments)
+    private final Map<String, Ids> buffer = new HashMap<>();
+    // the first message in the buffer
+    private int bufferFirst;
+    // the messages in the index, the next one has this id
+    private volatile int size;
+
+    private SearchIndex(File directory, List<IndexSegment> segments, int size) {
+        this.directory = directory;
+        this.segments = segments;
+        this.size = size;
+        this.bufferFirst = size;
+    }
+
+    /**
+     * Opens the index saved in the directory, creating it if needed.
+     * What was left by a write or merge that did not complete is removed.
+     */
+    public static SearchIndex open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) throw new IOException("Unable to read " + directory);
+
+        List<IndexSegment> found = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMPORARY_EXTENSION)) {
+                file.delete();
+                continue;
+            }
+            try {
+                IndexSegment segment = IndexSegment.open(file);
+                if (segment != null) found.add(segment);
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping the broken segment " + file.getName());
+                file.delete();
+            }
+        }
+        // by first message, the bigger first: a merged segment covers the ones
+        // that were merged in it, if they were not deleted yet
+        Collections.sort(found, (a, b) -> a.first != b.first ? Integer.compare(a.first, b.first) : Integer.compare(b.end, a.end));
+
+        List<IndexSegment> segments = new ArrayList<>();
+        int size = 0;
+        for (IndexSegment segment : found) {
+            if (segment.first == size && segment.end > size) {
+                segments.add(segment);
+                size = segment.end;
+            } else {
+                // already covered, or after a hole: the messages will be indexed again
+                segment.delete();
+            }
+        }
+        return new SearchIndex(directory, Collections.unmodifiableList(segments), size);
+    }
+
+    /** The number of messages in the index: the next message added must have this id */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the words of a message. Call it always from the same thread.
+     *
+     * @param id the id of the message, that must be {@link #size()}
+     * @param text the text of the message
+     */
+    public void add(int id, String text) throws IOException {
+        if (id != size) throw new IllegalArgumentException("Message " + id + " added, expected " + size);
+        synchronized (buffer) {
+            for (String term : terms(text)) {
+                Ids ids = buffer.get(term);
+                if (ids == null) {
+                    ids = new Ids();
+                    buffer.put(term, ids);
+                }
+                ids.add(id);
+            }
+            size++;
+        }
+        if (size - bufferFirst >= FLUSH_MESSAGES) flush();
+    }
+
+    /** Writes the messages in memory to a new segment (and merges the segments if needed) */
+    public void flush() throws IOException {
+        if (size == bufferFirst) return;
+
+        // only this thread changes the buffer: it can be read without the lock
+        byte[][] terms = new byte[buffer.size()][];
+        int t = 0;
+        for (String term : buffer.keySet()) {
+            terms[t++] = term.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(terms, IndexSegment::compare);
+
+        IndexSegment.Writer writer = new IndexSegment.Writer(directory, 0, bufferFirst, size);
+        IndexSegment segment;
+        try {
+            for (byte[] term : terms) {
+                writer.addTerm(term);
+                Ids ids = buffer.get(new String(term, StandardCharsets.UTF_8));
+                for (int i = 0; i < ids.size; i++) {
+                    writer.addId(ids.values[i]);
+                }
+            }
+            segment = writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        synchronized (buffer) {
+            segments = with(segments, segments.size(), segment);
+            buffer.clear();
+            bufferFirst = size;
+        }
+        merge();
+    }
+
+    /**
+     * The messages that contain all the words of the query.
+     *
+     * @return the ids of the messages, in increasing order
+     */
+    public int[] search(String query) {
+        List<String> terms = new ArrayList<>(terms(query));
+        if (terms.isEmpty()) return new int[0];
+
+        int[] result = null;
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            boolean prefix = i == terms.size() - 1 && term.length() >= MIN_PREFIX_LENGTH;
+            int[] ids = lookup(term, prefix);
+            result = result == null ? ids : intersect(result, ids);
+            if (result.length == 0) break;
+        }
+        return result;
+    }
+
+    /** Removes all the messages from the index */
+    public void clear() {
+        synchronized (buffer) {
+            for (IndexSegment segment : segments) {
+                segment.delete();
+            }
+            segments = Collections.emptyList();
+            buffer.clear();
+            size = 0;
+            bufferFirst = 0;
+        }
+    }
+
+    /** Writes the messages in memory, so that they are not indexed again at the next opening */
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * The words of a text, as they are indexed: lower case runs of letters and digits,
+     * each one only once.
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.codePointAt(i))) {
+                i += Character.charCount(text.codePointAt(i));
+            }
+            int begin = i;
+            while (i < length && Character.isLetterOrDigit(text.codePointAt(i))) {
+                i += Character.charCount(text.codePointAt(i));
+            }
+            if (i > begin) {
+                int end = Math.min(i, begin + MAX_TERM_LENGTH);
+                // do not cut a surrogate pair
+                if (end < i && Character.isHighSurrogate(text.charAt(end - 1))) end--;
+                terms.add(text.substring(begin, end).toLowerCase(Locale.ROOT));
+            }
+        }
+        return terms;
+    }
+
+    /** The ids of the messages with the word (or with a word that begins with it), in increasing order */
+    private int[] lookup(String term, boolean prefix) {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        Ids ids = new Ids();
+        List<IndexSegment> current;
+        Ids buffered = new Ids();
+        synchronized (buffer) {
+            // the segments and the buffer at the same moment: every message is in one of them
+            current = segments;
+            if (prefix) {
+                for (Map.Entry<String, Ids> entry : buffer.entrySet()) {
+                    if (entry.getKey().startsWith(term)) buffered.addAll(entry.getValue());
+                }
+            } else if (buffer.containsKey(term)) {
+                buffered.addAll(buffer.get(term));
+            }
+        }
+
+        for (IndexSegment segment : current) {
+            int from = ids.size;
+            if (prefix) {
+                int matches = 0;
+                for (int entry = segment.lowerBound(bytes);
+                     entry < segment.getTermCount() && segment.startsWith(entry, bytes); entry++) {
+                    segment.readIds(entry, ids);
+                    matches++;
+                }
+                // more words in the same message: sort them again
+                if (matches > 1) ids.sortUnique(from);
+            } else {
+                int entry = segment.find(bytes);
+                if (entry >= 0) segment.readIds(entry, ids);
+            }
+        }
+        int from = ids.size;
+        ids.addAll(buffered);
+        ids.sortUnique(from);
+        return Arrays.copyOf(ids.values, ids.size);
+    }
+
+    /** Merges the last segments while there are enough of the same level */
+    private void merge() throws IOException {
+        while (true) {
+            List<IndexSegment> current = segments;
+            int count = current.size();
+            if (count < MERGE_FACTOR) return;
+            int level = current.get(count - 1).level;
+            for (int i = count - MERGE_FACTOR; i < count; i++) {
+                if (current.get(i).level != level) return;
+            }
+
+            List<IndexSegment> merging = current.subList(count - MERGE_FACTOR, count);
+            long begin = System.currentTimeMillis();
+            IndexSegment merged = IndexSegment.merge(directory, merging);
+            synchronized (buffer) {
+                segments = with(current, count - MERGE_FACTOR, merged);
+            }
+            for (IndexSegment segment : merging) {
+                segment.delete();
+            }
+            Log.d(TAG, "Merged the messages " + merged.first + ".." + merged.end + " in "
+                    + (System.currentTimeMillis() - begin) + " ms");
+        }
+    }
+
+    /** A new list with the first count segments, followed by the given one */
+    private static List<IndexSegment> with(List<IndexSegment> segments, int count, IndexSegment segment) {
+        List<IndexSegment> result = new ArrayList<>(segments.subList(0, count));
+        result.add(segment);
+        return Collections.unmodifiableList(result);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /** A growing list of ids, without boxing */
+    static final class Ids {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int id) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = id;
+        }
+
+        void addAll(Ids other) {
+            ensureCapacity(size + other.size);
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > values.length) values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+
+        /** Sorts the ids from the given index on, removing the duplicates */
+        void sortUnique(int from) {
+            Arrays.sort(values, from, size);
+            int count = from;
+            for (int i = from; i < size; i++) {
+                if (count == from || values[count - 1] != values[i]) values[count++] = values[i];
+            }
+            size = count;
+        }
+    }
+}
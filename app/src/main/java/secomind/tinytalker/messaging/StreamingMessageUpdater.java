@@ -0,0 +1,133 @@
+package secomind.tinytalker.messaging;
+
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * StreamingMessageUpdater moves the text produced by the model, one token at a time,
+ * into the ChatMessage being displayed in the RecyclerView.
+ * The updater only changes the message: the listener tells the adapter
+ * (if there is one at the moment, e.g. not during a rotation).
+ *
+ * The generation thread can produce tokens much faster than the screen is refreshed.
+ * If every token caused a runOnUiThread + notifyItemChanged, the UI thread would be flooded
+ * with work that nobody can see. Here the deltas are instead accumulated in a buffer,
+ * and at most one adapter change is done per display frame (Choreographer callback).
+ *
+ * Usage example:
+ * <pre>
+ * // on the UI thread
+ * StreamingMessageUpdater updater = new StreamingMessageUpdater(message, position, listener);
+ * // on the generation thread
+ * updater.append(stream.decode(token));
+ * ...
+ * updater.finish();
+ * </pre>
+ *
+ * @see Choreographer
+ */
+public class StreamingMessageUpdater implements Choreographer.FrameCallback {
+
+    /** Called on the UI thread after the text of the message was updated.
+     * Here the adapter is notified of the change. */
+    public interface Listener {
+        /** Some new text (delta) was appended to the message */
+        void onMessageUpdated(int position, String delta);
+        /** The streaming is over and all the text has been displayed */
+        void onStreamFinished(int position);
+    }
+
+    private final ChatMessage message;
+    private final int position;
+    private final Listener listener;
+    private final Choreographer choreographer;
+
+    // text produced by the generation thread and not yet displayed (guarded by this)
+    private final StringBuilder pending = new StringBuilder();
+    // true when a frame callback is already waiting to be executed (guarded by this)
+    private boolean frameScheduled = false;
+    // true when the producer told us there will be no more text (guarded by this)
+    private boolean finished = false;
+    // released when all the text is in the message
+    private final CountDownLatch flushed = new CountDownLatch(1);
+
+    /**
+     * Creates the updater. It MUST be created on the UI thread, since the
+     * Choreographer is bound to the thread that requests it.
+     *
+     * @param message the (model) message that will receive the text
+     * @param position the position of the message in the adapter
+     * @param listener optional listener, may be null
+     */
+    public StreamingMessageUpdater(@NonNull ChatMessage message, int position, Listener listener) {
+        this.message = message;
+        this.position = position;
+        this.listener = listener;
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Adds a piece of decoded text. Can be called from any thread.
+     * The text will be shown at the next display frame.
+     */
+    public void append(String delta) {
+        if (delta == null || delta.isEmpty()) return;
+        synchronized (this) {
+            pending.append(delta);
+            scheduleFrameLocked();
+        }
+    }
+
+    /**
+     * Tells the updater that the generation is over. Can be called from any thread.
+     * The remaining text is flushed at the next frame, then the listener is notified.
+     */
+    public void finish() {
+        synchronized (this) {
+            finished = true;
+            scheduleFrameLocked();
+        }
+    }
+
+    /**
+     * Waits until all the text has been moved into the message, after {@link #finish()}.
+     * Used by the generation thread before the message is read again (e.g. for the next prompt).
+     * Never call it on the UI thread.
+     */
+    public void awaitFlushed() throws InterruptedException {
+        flushed.await();
+    }
+
+    private void scheduleFrameLocked() {
+        if (!frameScheduled) {
+            frameScheduled = true;
+            // postFrameCallback is thread safe, the callback runs on the UI thread
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /** Executed on the UI thread, once per frame at most */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        String delta;
+        boolean done;
+        synchronized (this) {
+            delta = pending.toString();
+            pending.setLength(0);
+            done = finished;
+            frameScheduled = false;
+        }
+
+        if (!delta.isEmpty()) {
+            message.appendMessage(delta);
+            if (listener != null) listener.onMessageUpdated(position, delta);
+        }
+        if (done) {
+            flushed.countDown();
+            if (listener != null) listener.onStreamFinished(position);
+        }
+    }
+}
@@ -2,98 +2,868 @@ package secomind.tinytalker.utilities;
 
 import static androidx.constraintlayout.helper.widget.MotionEffect.TAG;
 
-import android.content.Context;
+import android.os.Trace;
 import android.util.Log;
-import android.util.Pair;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import ai.onnxruntime.genai.GenAIException;
 
+/**
+ * Downloads the files of the model.
+ *
+ * Big files are split in byte ranges (chunks) that are downloaded over several
+ * concurrent connections using HTTP Range requests, and written in place
+ * in a .tmp file. Next to it, a .tmp.parts file records which chunks are complete,
+ * so an interrupted download resumes from the missing chunks instead of starting again.
+ * Servers that do not support ranges are handled with a single plain request per file.
+ *
+ * The SHA-256 of every file is computed while it is written: the bytes of the first chunk not yet
+ * hashed are fed to the digest as they arrive, the chunks completed ahead of it are hashed
+ * as soon as it is their turn, while they are still in the page cache. The hash is checked against
+ * the expected one (given with the file or published by the server) before the file is
+ * renamed, and recorded in the {@link ModelValidationCache}.
+ *
+ * The bytes go from the connection to the file through a FileChannel, using large direct
+ * ByteBuffers that are reused by all the chunks. The data is synced to storage explicitly:
+ * every few chunks (only then are they marked as complete in the .tmp.parts file) and at
+ * the end of every file. Progress is reported to the callback at most every
+ * PROGRESS_INTERVAL_BYTES or PROGRESS_INTERVAL_MS, not for every read.
+ *
+ * Every connection has a connect and a read timeout, so a stalled server does not hang the
+ * download: a chunk whose connection times out is requested again from its start, a few times.
+ *
+ * A file can also be published compressed (gzip, or a zip that contains it, see {@link Compression}):
+ * then it is decompressed while it is downloaded, and the archive is never written to disk.
+ * The download thread passes the compressed bytes to a decompression thread through a few
+ * blocks ({@link BlockPipe}), so the network and the CPU work at the same time, and the
+ * download waits when the decompression is behind. A compressed file is downloaded with a
+ * single request, and starts again from the beginning if it is interrupted. Its hash is the
+ * one of the decompressed file (the one published by the server is ignored: it is the one
+ * of the archive).
+ */
 public class ModelDownloader {
+  // number of concurrent connections used by default
+  public static final int DEFAULT_CONNECTIONS = 4;
+  // size of the byte range downloaded by a single request
+  static final long CHUNK_SIZE = 16L * 1024 * 1024;
+  // size of the direct buffers used to move the bytes from the connection to the file
+  static final int BUFFER_SIZE = 1024 * 1024;
+  // size of the array the bytes are read in from the connection
+  private static final int STAGING_SIZE = 64 * 1024;
+  // completed chunks that are synced to storage (and recorded in the .tmp.parts file) together
+  static final int CHUNKS_PER_SYNC = 4;
+  // the callback is called when at least one of these thresholds is passed
+  static final long PROGRESS_INTERVAL_BYTES = 4L * 1024 * 1024;
+  static final long PROGRESS_INTERVAL_MS = 250;
+  // compressed blocks that can wait between the download and the decompression
+  static final int PIPE_BLOCKS = 16;
+  // size of the buffer of the decompressor
+  private static final int INFLATER_BUFFER_SIZE = 64 * 1024;
+  // a connection that cannot be opened, or that sends nothing for this long, is given up
+  static final int CONNECT_TIMEOUT_MS = 15_000;
+  static final int READ_TIMEOUT_MS = 30_000;
+  // times a chunk is requested when its connection times out
+  static final int CHUNK_ATTEMPTS = 3;
+
+  /** How a file is published on the server */
+  public enum Compression {
+    /** the file itself */
+    NONE,
+    /** the file compressed with gzip */
+    GZIP,
+    /** a zip archive with the file in it (the entry with the same name, in any directory) */
+    ZIP;
+
+    /** The compression of an archive, from the extension of its name (.gz or .zip) */
+    public static Compression of(String archiveName) {
+      String name = archiveName.toLowerCase(Locale.ROOT);
+      if (name.endsWith(".gz")) return GZIP;
+      if (name.endsWith(".zip")) return ZIP;
+      return NONE;
+    }
+  }
+
   public interface DownloadCallback {
+    /** Progress of the whole download. Called from the download threads, one call at a time. */
     void onProgress(long lastBytesRead, long bytesRead, long bytesTotal);
+    /** Progress of a single file. Called from the download threads, one call at a time. */
+    default void onFileProgress(String fileName, long bytesRead, long fileSize) {
+    }
     void onDownloadComplete() throws GenAIException;
   }
 
-  public static void downloadModel(Context context, List<Pair<String, String>> urlFilePairs, DownloadCallback callback) {
-    try {
+  /** A file to download: where it is, and the name it will have in the download directory */
+  public static class RemoteFile {
+    public final String url;
+    public final String fileName;
+    // expected SHA-256 (hex), null if not known
+    public final String sha256;
+    // expected size in bytes (of the file, not of the archive), 0 if not known
+    public final long size;
+    // how the file is published at the url
+    public final Compression compression;
 
-      List<HttpURLConnection> connections = new ArrayList<>();
-      long totalDownloadBytes = 0;
-      for (int i = 0; i < urlFilePairs.size(); i++) {
-        String url = urlFilePairs.get(i).first;
-        URL modelUrl = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) modelUrl.openConnection();
-        connections.add(connection);
-        long totalFileSize = connection.getHeaderFieldLong("Content-Length",-1);
-        totalDownloadBytes += totalFileSize;
-      }
-
-      long totalBytesRead = 0;
-      for (int i = 0; i < urlFilePairs.size(); i++) {
-        String fileName = urlFilePairs.get(i).second;
-        HttpURLConnection connection = connections.get(i);
-
-        File file = new File(context.getFilesDir(), fileName);
-        File tempFile = new File(context.getFilesDir(), fileName + ".tmp");
-        Log.d(TAG, "Downloading file: " + fileName);
-        connection.connect();
+    public RemoteFile(String url, String fileName) {
+      this(url, fileName, null);
+    }
 
-        // Check if response code is OK
-        if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-          InputStream inputStream = connection.getInputStream();
-          FileOutputStream outputStream = new FileOutputStream(tempFile);
+    public RemoteFile(String url, String fileName, String sha256) {
+      this(url, fileName, sha256, 0);
+    }
 
-          long begin = System.currentTimeMillis();
+    public RemoteFile(String url, String fileName, String sha256, long size) {
+      this(url, fileName, sha256, size, Compression.NONE);
+    }
 
-          byte[] buffer = new byte[4096];
-          int bytesRead;
+    public RemoteFile(String url, String fileName, String sha256, long size, Compression compression) {
+      this.url = url;
+      this.fileName = fileName;
+      this.sha256 = sha256;
+      this.size = size;
+      this.compression = compression;
+    }
+  }
 
-          while ((bytesRead = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
-            if (callback != null) {
-              callback.onProgress(totalBytesRead, totalBytesRead + bytesRead, totalDownloadBytes);
-            }
-            totalBytesRead += bytesRead;
-          }
+  /** What the server tells about a file before it is downloaded */
+  public static class RemoteInfo {
+    // where the file is, after the redirects
+    public final String url;
+    // size of what is published at the url (the archive, for a compressed file), 0 if not known
+    public final long size;
+    // false if the server does not support ranges or did not tell us the size
+    public final boolean ranged;
+    // SHA-256 (hex) published by the server, null if none (always null for a compressed file)
+    public final String sha256;
 
-          outputStream.flush();
-          outputStream.close();
-          inputStream.close();
-          connection.disconnect();
+    RemoteInfo(String url, long size, boolean ranged, String sha256) {
+      this.url = url;
+      this.size = size;
+      this.ranged = ranged;
+      this.sha256 = sha256;
+    }
+  }
 
-          long duration = System.currentTimeMillis() - begin;
+  /**
+   * Asks the server the size of the file, if it supports ranges and, if it publishes it, its SHA-256.
+   * It uses the network: call it from a background thread.
+   */
+  public static RemoteInfo query(RemoteFile remoteFile) throws IOException {
+    String sha256 = null;
+    URL url = new URL(remoteFile.url);
+    // redirects are followed by hand: Hugging Face publishes the SHA-256 of the big (LFS) files
+    // in the X-Linked-Etag header of the redirect response
+    for (int redirects = 0; ; redirects++) {
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      try {
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod("HEAD");
+        int code = connection.getResponseCode();
+        if (sha256 == null && remoteFile.compression == Compression.NONE) {
+          sha256 = FileDownload.parseSha256(connection.getHeaderField("X-Linked-Etag"));
+        }
+        if (code >= 300 && code < 400 && connection.getHeaderField("Location") != null && redirects < 5) {
+          url = new URL(url, connection.getHeaderField("Location"));
+          continue;
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+          throw new IOException("HTTP response code " + code + " for " + remoteFile.url);
+        }
+        long size = connection.getContentLengthLong();
+        // a compressed stream can only be decompressed from its beginning
+        boolean ranged = size > 0 && remoteFile.compression == Compression.NONE
+                && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+        return new RemoteInfo(url.toString(), Math.max(size, 0), ranged, sha256);
+      } finally {
+        connection.disconnect();
+      }
+    }
+  }
 
-          // File downloaded successfully
-          if (tempFile.renameTo(file)) {
-            if (duration > 0) {
-              Log.d(TAG, "File downloaded successfully: " + fileName + "(" + totalBytesRead + " bytes, " + (totalBytesRead / duration) + "KBps)");
-            } else {
-              Log.d(TAG, "File downloaded successfully: " + fileName + "(" + totalBytesRead + " bytes, " + (duration / 1000.0) + "s)");
+  /**
+   * Downloads the files in the directory, using at most the given number of concurrent connections.
+   * onDownloadComplete is called only if every file was downloaded.
+   *
+   * @return true if all the files were downloaded
+   */
+  public static boolean downloadModel(File directory, List<RemoteFile> files, int connections, DownloadCallback callback) {
+    // seen in Perfetto, like the chunks below
+    Trace.beginSection("download");
+    ExecutorService executor = Executors.newFixedThreadPool(connections);
+    ModelValidationCache validationCache = new ModelValidationCache(directory);
+    List<FileDownload> downloads = new ArrayList<>();
+    try {
+      // ask the size of every file, and check what is already on disk from a previous attempt
+      long totalDownloadBytes = 0;
+      for (RemoteFile remoteFile : files) {
+        FileDownload download = FileDownload.prepare(directory, remoteFile);
+        downloads.add(download);
+        totalDownloadBytes += download.size;
+      }
+
+      Progress progress = new Progress(callback, totalDownloadBytes);
+      // one buffer per connection, reused by all the chunks
+      BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(connections);
+      for (int i = 0; i < connections; i++) {
+        buffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+      }
+
+      List<Future<?>> futures = new ArrayList<>();
+      for (FileDownload download : downloads) {
+        progress.add(download, download.completedBytes());
+        for (int chunk = 0; chunk < download.chunks; chunk++) {
+          if (download.isChunkDone(chunk)) continue;
+          final int index = chunk;
+          futures.add(executor.submit(() -> {
+            ByteBuffer buffer = buffers.take();
+            Trace.beginSection("download chunk");
+            try {
+              download.downloadChunk(index, buffer, progress);
+            } finally {
+              Trace.endSection();
+              buffers.add(buffer);
             }
-          } else {
-            Log.e(TAG, "Failed to rename temp file to original file");
-          }
-        } else {
-          Log.e(TAG, "Failed to download model. HTTP response code: " + connection.getResponseCode());
+            return null;
+          }));
+        }
+      }
+
+      long begin = System.currentTimeMillis();
+      try {
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        // what is on disk is kept for the next attempt
+        for (FileDownload download : downloads) {
+          download.sync();
         }
       }
+      progress.flush();
+      for (FileDownload download : downloads) {
+        download.complete(validationCache, buffers.peek());
+      }
+      long duration = System.currentTimeMillis() - begin;
+      if (duration > 0) {
+        Log.d(TAG, "Files downloaded successfully (" + progress.bytesRead + " bytes, " + (progress.bytesRead / duration) + "KBps)");
+      }
+
       if (callback != null) {
         callback.onDownloadComplete();
       }
+      return true;
+    } catch (ExecutionException e) {
+      Log.e(TAG, "Exception occurred during model download: " + e.getCause());
     } catch (IOException e) {
-      e.printStackTrace();
       Log.e(TAG, "Exception occurred during model download: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      Log.e(TAG, "Model download interrupted");
     } catch (GenAIException e) {
       throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+      for (FileDownload download : downloads) {
+        download.close();
+      }
+      Trace.endSection();
+    }
+    return false;
+  }
+
+  /** Sums the bytes read by all the threads and forwards them to the callback,
+   * at most every PROGRESS_INTERVAL_BYTES or PROGRESS_INTERVAL_MS */
+  static class Progress {
+    private final DownloadCallback callback;
+    private final long bytesTotal;
+    long bytesRead = 0;
+    // what the callback was told the last time
+    private long reportedBytes = 0;
+    private long reportedTime = 0;
+
+    Progress(DownloadCallback callback, long bytesTotal) {
+      this.callback = callback;
+      this.bytesTotal = bytesTotal;
+    }
+
+    /** Takes back the bytes of a chunk that is downloaded again */
+    synchronized void remove(FileDownload download, long bytes) {
+      bytesRead -= bytes;
+      download.bytesRead -= bytes;
+    }
+
+    synchronized void add(FileDownload download, long bytes) {
+      if (bytes <= 0) return;
+      bytesRead += bytes;
+      download.bytesRead += bytes;
+      if (callback == null) return;
+
+      long now = System.currentTimeMillis();
+      if (bytesRead - reportedBytes >= PROGRESS_INTERVAL_BYTES || now - reportedTime >= PROGRESS_INTERVAL_MS
+              || download.bytesRead == download.size) {
+        callback.onProgress(reportedBytes, bytesRead, bytesTotal);
+        callback.onFileProgress(download.remoteFile.fileName, download.bytesRead, download.size);
+        reportedBytes = bytesRead;
+        reportedTime = now;
+      }
+    }
+
+    /** Reports what was not reported yet */
+    synchronized void flush() {
+      if (callback != null && reportedBytes != bytesRead) {
+        callback.onProgress(reportedBytes, bytesRead, bytesTotal);
+        reportedBytes = bytesRead;
+      }
+    }
+  }
+
+  /** State of the download of one file, split in chunks */
+  static class FileDownload {
+    final RemoteFile remoteFile;
+    final File file;
+    final File tempFile;
+    final File partsFile;
+    final long size;
+    // false if the server does not support ranges or did not tell us the size
+    final boolean ranged;
+    final int chunks;
+    // one byte per chunk, 1 when the chunk is on disk
+    private final byte[] done;
+    // chunks that are on disk but not yet synced and recorded in partsFile (guarded by this)
+    private final List<Integer> unsyncedChunks = new ArrayList<>();
+    // the .tmp file, shared by all the chunks (positional reads and writes are thread safe)
+    private FileChannel channel;
+    // updated under the lock of Progress
+    long bytesRead = 0;
+
+    // expected SHA-256 (hex), null if neither the caller nor the server told us
+    final String expectedSha256;
+    // guards digest and hashedChunks
+    private final Object hashLock = new Object();
+    // digest of the chunks [0, hashedChunks)
+    private MessageDigest digest = ModelValidationCache.newSha256();
+    private int hashedChunks = 0;
+
+    private FileDownload(RemoteFile remoteFile, File directory, long size, boolean ranged, String expectedSha256) {
+      this.remoteFile = remoteFile;
+      this.file = new File(directory, remoteFile.fileName);
+      this.tempFile = new File(directory, remoteFile.fileName + ".tmp");
+      this.partsFile = new File(directory, remoteFile.fileName + ".tmp.parts");
+      this.size = size;
+      this.ranged = ranged;
+      this.chunks = ranged ? (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE) : 1;
+      this.done = new byte[chunks];
+      this.expectedSha256 = expectedSha256;
+    }
+
+    static FileDownload prepare(File directory, RemoteFile remoteFile) throws IOException {
+      RemoteInfo info = query(remoteFile);
+      String sha256 = remoteFile.sha256 != null ? remoteFile.sha256 : info.sha256;
+      FileDownload download = new FileDownload(new RemoteFile(info.url, remoteFile.fileName, sha256,
+              remoteFile.size, remoteFile.compression), directory, info.size, info.ranged, sha256);
+      download.restoreOrReset();
+      // the chunks of a previous attempt are hashed now, the new ones while they arrive
+      download.advanceHash(ByteBuffer.allocate(BUFFER_SIZE));
+      return download;
+    }
+
+    /** Returns the value of an ETag if it is a SHA-256, null otherwise */
+    static String parseSha256(String etag) {
+      if (etag == null) return null;
+      String value = etag.replace("W/", "").replace("\"", "").trim();
+      return value.matches("[0-9a-fA-F]{64}") ? value.toLowerCase() : null;
+    }
+
+    /** Reloads the chunks downloaded by a previous attempt, if the partial files are consistent */
+    private void restoreOrReset() throws IOException {
+      if (ranged && tempFile.length() == size && partsFile.length() == chunks) {
+        try (RandomAccessFile parts = new RandomAccessFile(partsFile, "r")) {
+          parts.readFully(done);
+        }
+        Log.d(TAG, "Resuming download of " + remoteFile.fileName + " (" + completedBytes() + " bytes already on disk)");
+      } else {
+        // nothing reusable: start from an empty file
+        tempFile.delete();
+        partsFile.delete();
+        if (ranged) {
+          try (RandomAccessFile parts = new RandomAccessFile(partsFile, "rw")) {
+            parts.setLength(chunks);
+          }
+        }
+      }
+      RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+      if (ranged && temp.length() != size) {
+        // allocate the whole file, the chunks are written at their place
+        temp.setLength(size);
+      }
+      channel = temp.getChannel();
+    }
+
+    synchronized boolean isChunkDone(int chunk) {
+      return done[chunk] != 0;
+    }
+
+    synchronized long completedBytes() {
+      long bytes = 0;
+      for (int chunk = 0; chunk < chunks; chunk++) {
+        if (done[chunk] != 0) bytes += chunkEnd(chunk) - chunkStart(chunk);
+      }
+      return bytes;
+    }
+
+    long chunkStart(int chunk) {
+      return chunk * CHUNK_SIZE;
+    }
+
+    long chunkEnd(int chunk) {
+      return ranged ? Math.min(size, (chunk + 1) * CHUNK_SIZE) : size;
+    }
+
+    /** Downloads the chunk, again from its start if the connection times out (at most CHUNK_ATTEMPTS times) */
+    void downloadChunk(int chunk, ByteBuffer buffer, Progress progress) throws IOException {
+      for (int attempt = 1; ; attempt++) {
+        try {
+          fetchChunk(chunk, buffer, progress);
+          break;
+        } catch (SocketTimeoutException e) {
+          if (attempt == CHUNK_ATTEMPTS || Thread.currentThread().isInterrupted()) throw e;
+          Log.w(TAG, "Chunk " + chunk + " of " + remoteFile.fileName + " timed out, downloading it again");
+        }
+      }
+      advanceHash(buffer);
+    }
+
+    private void fetchChunk(int chunk, ByteBuffer buffer, Progress progress) throws IOException {
+      long start = chunkStart(chunk);
+      long end = chunkEnd(chunk);
+
+      HttpURLConnection connection = (HttpURLConnection) new URL(remoteFile.url).openConnection();
+      try {
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (ranged) {
+          connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+        }
+        connection.connect();
+        int expected = ranged ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK;
+        if (connection.getResponseCode() != expected) {
+          throw new IOException("HTTP response code " + connection.getResponseCode() + " for " + remoteFile.fileName
+                  + " bytes " + start + "-" + (end - 1));
+        }
+
+        // if nobody hashed up to here, this chunk is hashed while it is written (a new copy at every attempt)
+        MessageDigest inlineDigest = startInlineHash(chunk);
+        if (remoteFile.compression != Compression.NONE) {
+          // a single chunk, with the whole archive
+          decompress(connection.getInputStream(), buffer, inlineDigest, progress);
+          synchronized (hashLock) {
+            markChunkDone(chunk);
+            if (inlineDigest != null) {
+              finishInlineHash(chunk, inlineDigest);
+            }
+          }
+          return;
+        }
+        long position = start;
+        // the connection gives us a stream: the bytes land in a small heap array, where they are
+        // hashed, and are then collected in the big direct buffer, written with a single call
+        byte[] staging = new byte[STAGING_SIZE];
+        try (InputStream input = connection.getInputStream()) {
+          boolean endOfStream = false;
+          while (!endOfStream) {
+            if (Thread.currentThread().isInterrupted()) {
+              throw new IOException("Download of " + remoteFile.fileName + " interrupted");
+            }
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+              int read = input.read(staging, 0, Math.min(staging.length, buffer.remaining()));
+              if (read == -1) {
+                endOfStream = true;
+                break;
+              }
+              if (inlineDigest != null) {
+                inlineDigest.update(staging, 0, read);
+              }
+              buffer.put(staging, 0, read);
+            }
+            buffer.flip();
+            int bytesRead = buffer.remaining();
+            if (bytesRead == 0) continue;
+
+            while (buffer.hasRemaining()) {
+              position += channel.write(buffer, position);
+            }
+            progress.add(this, bytesRead);
+          }
+        } catch (IOException e) {
+          // if the chunk is downloaded again, its bytes are counted again
+          progress.remove(this, position - start);
+          throw e;
+        }
+        if (ranged && position != end) {
+          throw new IOException("Incomplete chunk of " + remoteFile.fileName + ": " + (position - start) + " bytes instead of " + (end - start));
+        }
+        synchronized (hashLock) {
+          // together, so nobody reads back the chunk in between
+          markChunkDone(chunk);
+          if (inlineDigest != null) {
+            finishInlineHash(chunk, inlineDigest);
+          }
+        }
+      } finally {
+        connection.disconnect();
+      }
+    }
+
+    /**
+     * Reads the archive from the connection on this thread, and decompresses it in the .tmp file
+     * on another one. The blocks of the archive go from one to the other through a BlockPipe.
+     */
+    private void decompress(InputStream input, ByteBuffer buffer, MessageDigest digest, Progress progress)
+            throws IOException {
+      BlockPipe pipe = new BlockPipe(PIPE_BLOCKS, STAGING_SIZE);
+      FutureTask<Long> decompression = new FutureTask<>(() -> {
+        Trace.beginSection("decompress");
+        try (InputStream decompressed = openArchive(pipe)) {
+          return writeDecompressed(decompressed, buffer, digest);
+        } catch (IOException | RuntimeException e) {
+          // the download stops at the next block
+          pipe.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+          throw e;
+        } finally {
+          Trace.endSection();
+        }
+      });
+      Thread thread = new Thread(decompression, "decompress " + remoteFile.fileName);
+      thread.start();
+
+      long received = 0;
+      try (InputStream archive = input) {
+        while (true) {
+          if (Thread.currentThread().isInterrupted()) {
+            throw new IOException("Download of " + remoteFile.fileName + " interrupted");
+          }
+          // waits while all the blocks are full; null if the decompression needs no more of them
+          BlockPipe.Block block = pipe.acquire();
+          if (block == null) break;
+          block.length = archive.read(block.data);
+          if (block.length == -1) break;
+          pipe.send(block);
+          progress.add(this, block.length);
+          received += block.length;
+        }
+        pipe.finish();
+      } catch (IOException e) {
+        pipe.fail(e);
+        // the archive can be downloaded again only when nobody writes the file anymore
+        try {
+          thread.join();
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        progress.remove(this, received);
+        throw e;
+      }
+
+      long written;
+      try {
+        written = decompression.get();
+      } catch (InterruptedException e) {
+        pipe.fail(new InterruptedIOException());
+        Thread.currentThread().interrupt();
+        throw new IOException("Decompression of " + remoteFile.fileName + " interrupted");
+      } catch (ExecutionException e) {
+        throw new IOException("Unable to decompress " + remoteFile.fileName + ": " + e.getCause().getMessage());
+      }
+      Log.d(TAG, "Decompressed " + remoteFile.fileName + ": " + written + " bytes");
+    }
+
+    /** The stream of the decompressed file, from the stream of the archive */
+    private InputStream openArchive(InputStream archive) throws IOException {
+      if (remoteFile.compression == Compression.GZIP) {
+        return new GZIPInputStream(archive, INFLATER_BUFFER_SIZE);
+      }
+      ZipInputStream zip = new ZipInputStream(archive);
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        // the directories of the archive are not kept
+        String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+        if (!entry.isDirectory() && name.equals(remoteFile.fileName)) return zip;
+      }
+      zip.close();
+      throw new IOException(remoteFile.fileName + " is not in the archive");
+    }
+
+    /** Writes the decompressed bytes in the .tmp file, hashing them; returns how many they were */
+    private long writeDecompressed(InputStream decompressed, ByteBuffer buffer, MessageDigest digest)
+            throws IOException {
+      byte[] staging = new byte[STAGING_SIZE];
+      long position = 0;
+      buffer.clear();
+      while (true) {
+        int read = decompressed.read(staging, 0, Math.min(staging.length, buffer.remaining()));
+        if (read == -1) break;
+        if (digest != null) {
+          digest.update(staging, 0, read);
+        }
+        buffer.put(staging, 0, read);
+        if (!buffer.hasRemaining()) position = write(buffer, position);
+      }
+      return write(buffer, position);
+    }
+
+    /** Writes the content of the buffer at the position, and empties it */
+    private long write(ByteBuffer buffer, long position) throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      buffer.clear();
+      return position;
+    }
+
+    /** Marks the chunk as complete. Every CHUNKS_PER_SYNC chunks, the file is synced
+     * and the completed chunks are recorded in the .tmp.parts file */
+    private synchronized void markChunkDone(int chunk) throws IOException {
+      done[chunk] = 1;
+      unsyncedChunks.add(chunk);
+      if (unsyncedChunks.size() >= CHUNKS_PER_SYNC) {
+        sync();
+      }
+    }
+
+    /** Makes the data written so far durable, then records the completed chunks.
+     * In this order, a chunk is never marked as complete before its bytes are on storage */
+    synchronized void sync() throws IOException {
+      if (unsyncedChunks.isEmpty() || channel == null || !channel.isOpen()) return;
+      channel.force(false);
+      if (ranged) {
+        try (RandomAccessFile parts = new RandomAccessFile(partsFile, "rw")) {
+          for (int unsynced : unsyncedChunks) {
+            parts.seek(unsynced);
+            parts.write(1);
+          }
+          parts.getFD().sync();
+        }
+      }
+      unsyncedChunks.clear();
+    }
+
+    synchronized void close() {
+      if (channel == null) return;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close " + tempFile.getName() + ": " + e.getMessage());
+      }
+    }
+
+    /** Returns a copy of the digest to be updated with the bytes of the chunk, if the chunk
+     * is the next one to be hashed. The copy replaces the digest only if the chunk is complete. */
+    private MessageDigest startInlineHash(int chunk) {
+      synchronized (hashLock) {
+        if (chunk != hashedChunks) return null;
+        try {
+          return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+          // the chunk will be read back from the file
+          return null;
+        }
+      }
+    }
+
+    private void finishInlineHash(int chunk, MessageDigest inlineDigest) {
+      synchronized (hashLock) {
+        if (chunk == hashedChunks) {
+          digest = inlineDigest;
+          hashedChunks++;
+        }
+      }
+    }
+
+    /** Hashes, reading them from the file, the completed chunks that follow the ones already hashed */
+    void advanceHash(ByteBuffer buffer) throws IOException {
+      synchronized (hashLock) {
+        while (hashedChunks < chunks && isChunkDone(hashedChunks)) {
+          long position = chunkStart(hashedChunks);
+          long end = chunkEnd(hashedChunks);
+          while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read == -1) throw new IOException("Unexpected end of " + tempFile.getName());
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+          }
+          hashedChunks++;
+        }
+      }
+    }
+
+    /** All the chunks are on disk: the hash is checked and the temporary file becomes the real one */
+    void complete(ModelValidationCache validationCache, ByteBuffer buffer) throws IOException {
+      advanceHash(buffer);
+      String sha256;
+      synchronized (hashLock) {
+        if (hashedChunks != chunks) {
+          throw new IOException("Missing chunks in " + remoteFile.fileName);
+        }
+        sha256 = ModelValidationCache.toHex(digest.digest());
+      }
+      // file boundary: everything must be on storage before the rename
+      channel.force(true);
+      close();
+      partsFile.delete();
+      if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256)) {
+        // the file is corrupted, it will be downloaded again from scratch
+        tempFile.delete();
+        throw new IOException("Checksum mismatch for " + remoteFile.fileName + ": " + sha256 + " instead of " + expectedSha256);
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Failed to rename temp file to " + file.getName());
+      }
+      validationCache.record(remoteFile.fileName, sha256);
+      Log.d(TAG, "File downloaded successfully: " + remoteFile.fileName + " (" + size + " bytes, sha256 " + sha256 + ")");
+    }
+  }
+
+  /**
+   * Passes the blocks of an archive from the thread that downloads them (acquire, send, finish)
+   * to the one that decompresses them, that reads them as an InputStream. The blocks are
+   * allocated once and recycled: when all of them are waiting to be decompressed, the
+   * download waits. A failure on either side stops the other one.
+   */
+  static class BlockPipe extends InputStream {
+
+    static final class Block {
+      final byte[] data;
+      int length;
+
+      Block(int size) {
+        data = new byte[size];
+      }
+    }
+
+    private final ArrayDeque<Block> free = new ArrayDeque<>();
+    private final ArrayDeque<Block> filled = new ArrayDeque<>();
+    // the block being read, and where
+    private Block current;
+    private int offset;
+    // the last block was sent
+    private boolean finished = false;
+    // the reader needs no more blocks
+    private boolean closed = false;
+    private IOException failure;
+
+    BlockPipe(int blocks, int blockSize) {
+      for (int i = 0; i < blocks; i++) {
+        free.add(new Block(blockSize));
+      }
+    }
+
+    /** A block to fill, waiting for one if they are all full; null if the reader needs no more of them */
+    synchronized Block acquire() throws IOException {
+      while (free.isEmpty() && !closed) {
+        checkFailure();
+        waitForChange();
+      }
+      checkFailure();
+      return closed ? null : free.poll();
+    }
+
+    /** Passes the filled block to the reader */
+    synchronized void send(Block block) {
+      filled.add(block);
+      notifyAll();
+    }
+
+    /** No more blocks will be sent */
+    synchronized void finish() {
+      finished = true;
+      notifyAll();
+    }
+
+    /** Stops the other side, which gets the exception */
+    synchronized void fail(IOException e) {
+      if (failure == null) failure = e;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      while (current == null) {
+        checkFailure();
+        current = filled.poll();
+        offset = 0;
+        if (current == null) {
+          if (finished) return -1;
+          waitForChange();
+        }
+      }
+      int count = Math.min(len, current.length - offset);
+      System.arraycopy(current.data, offset, bytes, off, count);
+      offset += count;
+      if (offset == current.length) {
+        free.add(current);
+        current = null;
+        notifyAll();
+      }
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+
+    private void checkFailure() throws IOException {
+      if (failure != null) throw failure;
+    }
+
+    private void waitForChange() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,361 @@
+package secomind.tinytalker.utilities;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Trace;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports a model from the storage of the phone, e.g. on devices that come with the models
+ * already copied on them: no network is needed.
+ *
+ * The user picks a folder, or some files, with the Storage Access Framework. The files are
+ * matched by name against the manifest ({@link ModelRegistry}): the model imported is the
+ * one chosen by the user if all its files are there, otherwise the first one of the
+ * manifest that has all of them. The other files are ignored.
+ *
+ * The files are copied in the directory of the model with FileChannel.transferTo, so the
+ * bytes go from one file to the other in the kernel, without passing through the app;
+ * the biggest files are copied at the same time. A provider that cannot seek (e.g. one that
+ * streams the file from the cloud) is read until its end instead. Every file goes first in a
+ * .tmp file, and is renamed only after its size is checked against the one told by the provider
+ * and the one of the manifest, and its SHA-256 against the one of the manifest (or published by
+ * the server, see {@link ModelRegistry#getFiles}): the hash is recorded in the
+ * {@link ModelValidationCache}, so the file is not read again when the model is loaded. A file
+ * without a known hash is not recorded: it stays unverified until there is a hash to check it
+ * against. A file already there, verified and of the same size, is not copied again.
+ *
+ * Usage example (from a background thread):
+ * <pre>
+ * ModelImporter importer = new ModelImporter(contentResolver, registry);
+ * ModelRegistry.Entry model = importer.importModel(uris, listener);
+ * </pre>
+ */
+public class ModelImporter {
+
+    private static final String TAG = "secomind.tinytalker.ModelImporter";
+
+    // files copied at the same time
+    public static final int DEFAULT_PARALLEL_COPIES = 3;
+    // bytes copied by every call to transferTo: the progress is reported after each one
+    static final long TRANSFER_SLICE = 64L * 1024 * 1024;
+    // buffer used to hash the copies, and to copy the files that cannot seek
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    /** Receives the progress of the copy, from the threads that copy */
+    public interface Listener {
+        void onImportProgress(long bytesCopied, long bytesTotal);
+    }
+
+    /** A file chosen by the user */
+    static final class Source {
+        final Uri uri;
+        final String name;
+        // -1 if the provider does not tell it
+        final long size;
+
+        Source(Uri uri, String name, long size) {
+            this.uri = uri;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final ModelRegistry registry;
+    private final int parallelCopies;
+
+    public ModelImporter(ContentResolver resolver, ModelRegistry registry) {
+        this(resolver, registry, DEFAULT_PARALLEL_COPIES);
+    }
+
+    public ModelImporter(ContentResolver resolver, ModelRegistry registry, int parallelCopies) {
+        this.resolver = resolver;
+        this.registry = registry;
+        this.parallelCopies = parallelCopies;
+    }
+
+    /**
+     * Copies the files of a model of the manifest in its directory, and verifies them.
+     *
+     * @param uris a folder (from ACTION_OPEN_DOCUMENT_TREE) or some files (from ACTION_OPEN_DOCUMENT)
+     * @return the model imported
+     * @throws IOException if no model of the manifest is among the files, or a copy failed
+     */
+    @WorkerThread
+    public ModelRegistry.Entry importModel(List<Uri> uris, Listener listener) throws IOException {
+        Map<String, Source> sources = new HashMap<>();
+        for (Uri uri : uris) {
+            for (Source source : DocumentsContract.isTreeUri(uri) ? listTree(uri) : Collections.singletonList(describe(uri))) {
+                sources.put(source.name, source);
+            }
+        }
+        ModelRegistry.Entry model = findModel(sources);
+        if (model == null) throw new IOException("The files are not the ones of a model of the app");
+
+        // makes room for the model, deleting the ones not used for the longest time
+        registry.prepare(model);
+        File directory = registry.getDirectory(model);
+        ModelValidationCache validationCache = new ModelValidationCache(directory);
+
+        if (hasMissingHashes(registry.getFiles(model))) {
+            try {
+                registry.resolve(model);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to ask the hashes of " + model.id + " to the server: " + e.getMessage());
+            }
+        }
+        List<ModelDownloader.RemoteFile> files = new ArrayList<>();
+        long bytesTotal = 0;
+        for (ModelDownloader.RemoteFile file : registry.getFiles(model)) {
+            Source source = sources.get(file.fileName);
+            if (isImported(directory, validationCache, file, source)) continue;
+            files.add(file);
+            bytesTotal += Math.max(source.size, 0);
+        }
+        if (bytesTotal > directory.getUsableSpace()) {
+            throw new IOException("Not enough space for " + model.name + ": " + bytesTotal / 1048576 + " MB needed");
+        }
+        // the biggest first: they are the ones that take longest
+        Collections.sort(files, (a, b) -> Long.compare(sources.get(b.fileName).size, sources.get(a.fileName).size));
+
+        Log.d(TAG, "Importing " + files.size() + " files of " + model.id + " (" + bytesTotal / 1048576 + " MB)");
+        long begin = System.currentTimeMillis();
+        final long total = bytesTotal;
+        AtomicLong bytesCopied = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelCopies, files.size())));
+        Trace.beginSection("import");
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (ModelDownloader.RemoteFile file : files) {
+                futures.add(executor.submit(() -> {
+                    importFile(directory, validationCache, file, sources.get(file.fileName), copied -> {
+                        if (listener != null) listener.onImportProgress(bytesCopied.addAndGet(copied), total);
+                    });
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import of " + model.id + " interrupted");
+        } finally {
+            // a failed copy stops the other ones
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Trace.endSection();
+        }
+        Log.d(TAG, "Imported " + model.id + " in " + (System.currentTimeMillis() - begin) + " ms");
+        return model;
+    }
+
+    /** The model chosen by the user if all its files are there, otherwise the first one of the manifest */
+    private ModelRegistry.Entry findModel(Map<String, Source> sources) {
+        ModelRegistry.Entry selected = registry.getSelected();
+        if (hasAllFiles(selected, sources)) return selected;
+        for (ModelRegistry.Entry model : registry.getModels()) {
+            if (hasAllFiles(model, sources)) return model;
+        }
+        return null;
+    }
+
+    private static boolean hasAllFiles(ModelRegistry.Entry model, Map<String, Source> sources) {
+        for (ModelDownloader.RemoteFile file : model.files) {
+            if (!sources.containsKey(file.fileName)) return false;
+        }
+        return true;
+    }
+
+    private static boolean hasMissingHashes(List<ModelDownloader.RemoteFile> files) {
+        for (ModelDownloader.RemoteFile file : files) {
+            if (file.sha256 == null) return true;
+        }
+        return false;
+    }
+
+    /** True if the file is already in the directory, verified, and as big as the one chosen */
+    private static boolean isImported(File directory, ModelValidationCache validationCache,
+                                      ModelDownloader.RemoteFile file, Source source) {
+        return validationCache.check(file.fileName, file.sha256) == ModelValidationCache.Status.VALID
+                && new File(directory, file.fileName).length() == source.size;
+    }
+
+    /** Receives the bytes copied by a slice of transferTo */
+    private interface CopyProgress {
+        void add(long bytes);
+    }
+
+    /** Copies the file in a .tmp file, checks it against the manifest, and gives it its real name */
+    private void importFile(File directory, ModelValidationCache validationCache, ModelDownloader.RemoteFile file,
+                            Source source, CopyProgress progress) throws IOException {
+        File tempFile = new File(directory, file.fileName + ".tmp");
+        File target = new File(directory, file.fileName);
+        boolean imported = false;
+        try {
+            long size;
+            ParcelFileDescriptor descriptor = resolver.openFileDescriptor(source.uri, "r");
+            if (descriptor == null) throw new IOException("Unable to open " + source.name);
+            try (FileInputStream input = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+                 FileChannel in = input.getChannel();
+                 RandomAccessFile output = new RandomAccessFile(tempFile, "rw");
+                 FileChannel out = output.getChannel()) {
+                output.setLength(0);
+                // 0 for a descriptor that cannot seek (a pipe, a file streamed by the provider)
+                size = in.size();
+                if (size > 0) {
+                    copy(in, size, out, source, progress);
+                } else {
+                    size = copyToEnd(in, out, source, progress);
+                }
+                // file boundary: the copy must be on storage before the rename
+                out.force(true);
+            }
+
+            // no file of a model is empty, and the copy has all the bytes the provider told us
+            // and the ones of the manifest (or published by the server)
+            if (size == 0) throw new IOException(file.fileName + " is empty");
+            if (source.size > 0 && size != source.size) {
+                throw new IOException(source.name + " was copied with " + size + " bytes instead of " + source.size);
+            }
+            if (file.size > 0 && size != file.size) {
+                throw new IOException(file.fileName + " has " + size + " bytes instead of " + file.size);
+            }
+            String sha256 = null;
+            if (file.sha256 != null) {
+                sha256 = hash(tempFile);
+                if (!sha256.equalsIgnoreCase(file.sha256)) {
+                    throw new IOException("Checksum mismatch for " + file.fileName + ": " + sha256 + " instead of " + file.sha256);
+                }
+            }
+            if (!tempFile.renameTo(target)) {
+                throw new IOException("Failed to rename temp file to " + file.fileName);
+            }
+            if (sha256 != null) {
+                validationCache.record(file.fileName, sha256);
+            } else {
+                // its own hash would make it valid for good: it stays unverified, and is hashed
+                // when the model is loaded once a hash is known (see ModelLoader)
+                validationCache.remove(file.fileName);
+                Log.w(TAG, "No hash to verify " + file.fileName + " against, only its size was checked");
+            }
+            imported = true;
+            Log.d(TAG, "File imported: " + file.fileName + " (" + size + " bytes)");
+        } finally {
+            if (!imported) tempFile.delete();
+        }
+    }
+
+    /** Copies the size bytes of a file that can seek, in the kernel */
+    private static void copy(FileChannel in, long size, FileChannel out, Source source, CopyProgress progress)
+            throws IOException {
+        long position = 0;
+        while (position < size) {
+            checkInterrupted(source);
+            long transferred = in.transferTo(position, Math.min(TRANSFER_SLICE, size - position), out);
+            if (transferred <= 0) {
+                throw new IOException(source.name + " ended after " + position + " bytes instead of " + size);
+            }
+            position += transferred;
+            progress.add(transferred);
+        }
+    }
+
+    /** Copies a file that cannot seek, reading it until its end; returns how many bytes it had */
+    private static long copyToEnd(FileChannel in, FileChannel out, Source source, CopyProgress progress)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        long position = 0;
+        while (in.read(buffer) != -1) {
+            checkInterrupted(source);
+            buffer.flip();
+            int read = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+            buffer.clear();
+            progress.add(read);
+        }
+        return position;
+    }
+
+    private static void checkInterrupted(Source source) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IOException("Import of " + source.name + " interrupted");
+        }
+    }
+
+    /** The SHA-256 of the file: it was just written, so it is usually read from the page cache */
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = ModelValidationCache.newSha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return ModelValidationCache.toHex(digest.digest());
+    }
+
+    /** The files in the folder chosen by the user (not the ones in its subfolders) */
+    private List<Source> listTree(Uri tree) throws IOException {
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(tree, DocumentsContract.getTreeDocumentId(tree));
+        String[] columns = {DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_SIZE, DocumentsContract.Document.COLUMN_MIME_TYPE};
+        List<Source> sources = new ArrayList<>();
+        try (Cursor cursor = resolver.query(children, columns, null, null, null)) {
+            if (cursor == null) throw new IOException("Unable to read the folder " + tree);
+            while (cursor.moveToNext()) {
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(3))) continue;
+                Uri uri = DocumentsContract.buildDocumentUriUsingTree(tree, cursor.getString(0));
+                sources.add(new Source(uri, cursor.getString(1), cursor.isNull(2) ? -1 : cursor.getLong(2)));
+            }
+        }
+        return sources;
+    }
+
+    /** The name and the size of a file chosen by the user */
+    private Source describe(Uri uri) throws IOException {
+        String[] columns = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        try (Cursor cursor = resolver.query(uri, columns, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) throw new IOException("Unable to read " + uri);
+            return new Source(uri, cursor.getString(0), cursor.isNull(1) ? -1 : cursor.getLong(1));
+        }
+    }
+}
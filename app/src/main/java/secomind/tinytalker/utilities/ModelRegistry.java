@@ -0,0 +1,331 @@
+package secomind.tinytalker.utilities;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The models the app can use, as listed in the manifest in the assets ({@link #MANIFEST}):
+ * <pre>
+ * { "models": [ { "id": "...", "name": "...", "source": "base url of the files",
+ *                 "files": [ { "name": "...", "size": 123, "sha256": "..." } ] } ] }
+ * </pre>
+ * Every file should have its size and sha256 (for the files on Hugging Face, the size and the
+ * sha256 of the LFS object). They are what the downloads, the imports and the files found on the
+ * device are checked against, and the size tells how much room a model needs before it is downloaded.
+ * When they are missing, they are asked to the server ({@link #resolve}) and remembered,
+ * so they are known from then on even offline. A file published compressed has also
+ * "archive": "name.gz" (or a .zip with the file in it): the archive is downloaded from the
+ * source and decompressed on the fly, size and sha256 are still the ones of the file.
+ *
+ * Every model lives in its own directory, models/id in the files of the app.
+ * The registry remembers which model was chosen, and when every model was last used:
+ * the models are big, so when the ones on the device take more than the storage budget,
+ * the least recently used are deleted (they can be downloaded again).
+ *
+ * The files of the first model of the manifest used to be in the files directory itself:
+ * they are moved in its directory the first time it is prepared.
+ */
+public class ModelRegistry {
+
+    private static final String TAG = "secomind.tinytalker.ModelRegistry";
+
+    public static final String MANIFEST = "models.json";
+    public static final String MODELS_DIRECTORY = "models";
+    // the models kept on the device: two models of the size of Phi-3 mini
+    public static final long DEFAULT_STORAGE_BUDGET = 6L * 1024 * 1024 * 1024;
+
+    private static final String PREFERENCES = "model_registry";
+    private static final String KEY_SELECTED = "selected";
+    private static final String KEY_LAST_USED = "last_used.";
+    // size,sha256 of a file, as published by the server, when the manifest does not have them
+    private static final String KEY_PUBLISHED = "published.";
+
+    /** A model of the manifest */
+    public static final class Entry {
+        public final String id;
+        public final String name;
+        public final String source;
+        public final List<ModelDownloader.RemoteFile> files;
+
+        Entry(String id, String name, String source, List<ModelDownloader.RemoteFile> files) {
+            this.id = id;
+            this.name = name;
+            this.source = source;
+            this.files = Collections.unmodifiableList(files);
+        }
+
+        /** The name of the onnx file, used to tell apart the models in the metrics */
+        public String getModelFileName() {
+            for (ModelDownloader.RemoteFile file : files) {
+                if (file.fileName.endsWith(".onnx")) return file.fileName;
+            }
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final File filesDirectory;
+    private final List<Entry> models;
+    private final SharedPreferences preferences;
+    private final long storageBudget;
+
+    private ModelRegistry(Context context, List<Entry> models, long storageBudget) {
+        this.filesDirectory = context.getFilesDir();
+        this.models = Collections.unmodifiableList(models);
+        this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.storageBudget = storageBudget;
+    }
+
+    /**
+     * Reads the manifest from the assets.
+     *
+     * @throws IOException if the manifest is missing, broken or empty
+     */
+    public static ModelRegistry load(Context context) throws IOException {
+        return load(context, DEFAULT_STORAGE_BUDGET);
+    }
+
+    /**
+     * Reads the manifest from the assets.
+     *
+     * @param storageBudget the bytes the models can take on the device
+     * @throws IOException if the manifest is missing, broken or empty
+     */
+    public static ModelRegistry load(Context context, long storageBudget) throws IOException {
+        String manifest;
+        try (InputStream in = context.getAssets().open(MANIFEST)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            manifest = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        List<Entry> models = new ArrayList<>();
+        try {
+            JSONArray array = new JSONObject(manifest).getJSONArray("models");
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject model = array.getJSONObject(i);
+                String source = model.getString("source");
+                List<ModelDownloader.RemoteFile> files = new ArrayList<>();
+                JSONArray fileArray = model.getJSONArray("files");
+                for (int f = 0; f < fileArray.length(); f++) {
+                    JSONObject file = fileArray.getJSONObject(f);
+                    String name = file.getString("name");
+                    String archive = file.optString("archive", null);
+                    String url = source + (archive != null ? archive : name);
+                    ModelDownloader.Compression compression = archive != null
+                            ? ModelDownloader.Compression.of(archive) : ModelDownloader.Compression.NONE;
+                    files.add(new ModelDownloader.RemoteFile(url, name,
+                            file.optString("sha256", null), file.optLong("size", 0), compression));
+                }
+                String id = model.getString("id");
+                models.add(new Entry(id, model.optString("name", id), source, files));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Broken model manifest: " + e.getMessage());
+        }
+        if (models.isEmpty()) throw new IOException("No models in the manifest");
+        return new ModelRegistry(context, models, storageBudget);
+    }
+
+    public List<Entry> getModels() {
+        return models;
+    }
+
+    /**
+     * The files of the model, with the size and the hash written in the manifest or,
+     * when the manifest does not have them, the ones the server published (see {@link #resolve}).
+     */
+    public List<ModelDownloader.RemoteFile> getFiles(Entry model) {
+        List<ModelDownloader.RemoteFile> files = new ArrayList<>(model.files.size());
+        for (ModelDownloader.RemoteFile file : model.files) {
+            String published = preferences.getString(KEY_PUBLISHED + model.id + "/" + file.fileName, null);
+            if (published == null || (file.size > 0 && file.sha256 != null)) {
+                files.add(file);
+                continue;
+            }
+            String[] fields = published.split(",", -1);
+            String sha256 = file.sha256 != null || fields[1].isEmpty() ? file.sha256 : fields[1];
+            long size = file.size > 0 || fields[0].isEmpty() ? file.size : Long.parseLong(fields[0]);
+            files.add(new ModelDownloader.RemoteFile(file.url, file.fileName, sha256, size, file.compression));
+        }
+        return files;
+    }
+
+    /** The size of the files of the model, 0 if the size of some of them is not known */
+    public long getExpectedSize(Entry model) {
+        long size = 0;
+        for (ModelDownloader.RemoteFile file : getFiles(model)) {
+            if (file.size <= 0) return 0;
+            size += file.size;
+        }
+        return size;
+    }
+
+    /**
+     * Asks the server the size and the hash of the files of the model that the manifest does not
+     * have, and remembers them. The hash is known only for the files the server publishes it of
+     * (the LFS files, on Hugging Face). It uses the network: call it from a background thread.
+     *
+     * @throws IOException if the server cannot be reached; what was found so far is kept
+     */
+    public void resolve(Entry model) throws IOException {
+        List<ModelDownloader.RemoteFile> files = getFiles(model);
+        for (ModelDownloader.RemoteFile file : files) {
+            // the server publishes the size and the hash of the archive, not of the file
+            if (file.compression != ModelDownloader.Compression.NONE) continue;
+            if (file.size > 0 && file.sha256 != null) continue;
+            ModelDownloader.RemoteInfo info = ModelDownloader.query(file);
+            long size = file.size > 0 ? file.size : info.size;
+            String sha256 = file.sha256 != null ? file.sha256 : info.sha256;
+            preferences.edit().putString(KEY_PUBLISHED + model.id + "/" + file.fileName,
+                    (size > 0 ? String.valueOf(size) : "") + "," + (sha256 != null ? sha256 : "")).apply();
+        }
+    }
+
+    /** The model with the given id, null if it is not in the manifest */
+    public Entry get(String id) {
+        for (Entry model : models) {
+            if (model.id.equals(id)) return model;
+        }
+        return null;
+    }
+
+    /** The model chosen by the user, the first of the manifest if none was chosen */
+    public Entry getSelected() {
+        Entry selected = get(preferences.getString(KEY_SELECTED, ""));
+        return selected != null ? selected : models.get(0);
+    }
+
+    public void select(Entry model) {
+        preferences.edit().putString(KEY_SELECTED, model.id).apply();
+    }
+
+    /** The directory with the files of the model */
+    public File getDirectory(Entry model) {
+        return new File(new File(filesDirectory, MODELS_DIRECTORY), model.id);
+    }
+
+    /** True if some files of the model are on the device (maybe not all of them) */
+    public boolean isOnDevice(Entry model) {
+        return sizeOf(getDirectory(model)) > 0;
+    }
+
+    /**
+     * Gets the directory of the model ready, before it is downloaded or loaded:
+     * it is created (moving there the files of an old version of the app), the model
+     * is marked as used now, and the least recently used models are deleted
+     * if the ones on the device would take more than the budget. If the size of the model
+     * is not known yet, it is asked to the server (see {@link #resolve}).
+     * It reads and deletes files, and may use the network: call it from a background thread.
+     */
+    public void prepare(Entry model) throws IOException {
+        File directory = getDirectory(model);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        if (model == models.get(0)) moveOldFiles(model, directory);
+        preferences.edit().putLong(KEY_LAST_USED + model.id, System.currentTimeMillis()).apply();
+        if (getExpectedSize(model) == 0) {
+            try {
+                resolve(model);
+            } catch (IOException e) {
+                // offline: the files on the device will be checked with what is known
+                Log.w(TAG, "Unable to ask the size of " + model.id + " to the server: " + e.getMessage());
+            }
+        }
+        evict(model);
+    }
+
+    /** Deletes the least recently used models (never the given one) until the models fit in the budget */
+    private void evict(Entry keep) {
+        // the model being prepared may still have to be downloaded
+        long total = Math.max(getExpectedSize(keep), sizeOf(getDirectory(keep)));
+        List<Entry> others = new ArrayList<>();
+        for (Entry model : models) {
+            if (model == keep) continue;
+            long size = sizeOf(getDirectory(model));
+            if (size > 0) {
+                others.add(model);
+                total += size;
+            }
+        }
+        // the least recently used first
+        Collections.sort(others, (a, b) -> Long.compare(
+                preferences.getLong(KEY_LAST_USED + a.id, 0), preferences.getLong(KEY_LAST_USED + b.id, 0)));
+        for (Entry model : others) {
+            if (total <= storageBudget) break;
+            long size = sizeOf(getDirectory(model));
+            Log.d(TAG, "Deleting the model " + model.id + " (" + size / 1048576 + " MB) to make room for " + keep.id);
+            deleteRecursively(getDirectory(model));
+            preferences.edit().remove(KEY_LAST_USED + model.id).apply();
+            total -= size;
+        }
+    }
+
+    /** Moves the files of the model from the files directory, where the old versions of the app put them */
+    private void moveOldFiles(Entry model, File directory) {
+        List<String> names = new ArrayList<>();
+        for (ModelDownloader.RemoteFile file : model.files) {
+            names.add(file.fileName);
+        }
+        // the hashes of the files stay valid: the size and the modification time do not change
+        names.add(ModelValidationCache.FILE_NAME);
+        for (String name : names) {
+            File oldFile = new File(filesDirectory, name);
+            File newFile = new File(directory, name);
+            if (oldFile.isFile() && !newFile.exists()) {
+                if (oldFile.renameTo(newFile)) {
+                    Log.d(TAG, "Moved " + name + " in " + directory);
+                } else {
+                    Log.w(TAG, "Unable to move " + name + " in " + directory);
+                }
+            }
+        }
+    }
+
+    private static long sizeOf(File file) {
+        // the links of the tuned configurations point to files counted already
+        if (Files.isSymbolicLink(file.toPath())) return 0;
+        if (file.isFile()) return file.length();
+        File[] children = file.listFiles();
+        if (children == null) return 0;
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) Log.w(TAG, "Unable to delete " + file);
+    }
+}
@@ -0,0 +1,151 @@
+package secomind.tinytalker.utilities;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Remembers which model files were verified, so that they do not need to be hashed again.
+ *
+ * For every verified file the cache keeps its size, its last modification time and its SHA-256.
+ * At the next launch, if size and modification time are the same, the file is considered
+ * intact without reading it: checking the integrity of the model costs two stat() calls per file.
+ *
+ * The cache is a small properties file in the same directory as the model.
+ */
+public class ModelValidationCache {
+
+    private static final String TAG = "secomind.tinytalker.ModelValidationCache";
+
+    public static final String FILE_NAME = "model_validation.properties";
+
+    /** Result of the check of a file */
+    public enum Status {
+        /** the file was verified and it did not change since then */
+        VALID,
+        /** the file is missing, or it changed after it was verified */
+        INVALID,
+        /** the file is there, but it was never verified (e.g. it was copied by hand) */
+        UNKNOWN
+    }
+
+    private final File directory;
+    private final File cacheFile;
+    private final Properties entries = new Properties();
+
+    public ModelValidationCache(File directory) {
+        this.directory = directory;
+        this.cacheFile = new File(directory, FILE_NAME);
+        if (cacheFile.exists()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                entries.load(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the model validation cache: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Checks the file against what was recorded when it was verified, without reading it.
+     *
+     * @param expectedSha256 the hash the file must have, or null if it is not known
+     */
+    public synchronized Status check(String fileName, String expectedSha256) {
+        File file = new File(directory, fileName);
+        if (!file.exists()) return Status.INVALID;
+
+        String entry = entries.getProperty(fileName);
+        if (entry == null) return Status.UNKNOWN;
+
+        String[] fields = entry.split(",");
+        if (fields.length != 3) return Status.UNKNOWN;
+        boolean unchanged = Long.parseLong(fields[0]) == file.length()
+                && Long.parseLong(fields[1]) == file.lastModified();
+        boolean expected = expectedSha256 == null || expectedSha256.equalsIgnoreCase(fields[2]);
+        return unchanged && expected ? Status.VALID : Status.INVALID;
+    }
+
+    /** Returns the recorded hash of the file, or null if it was never verified */
+    public synchronized String getSha256(String fileName) {
+        String entry = entries.getProperty(fileName);
+        if (entry == null) return null;
+        String[] fields = entry.split(",");
+        return fields.length == 3 ? fields[2] : null;
+    }
+
+    /** Records the hash of a file that was just verified (e.g. computed while downloading it) */
+    public synchronized void record(String fileName, String sha256) throws IOException {
+        File file = new File(directory, fileName);
+        entries.setProperty(fileName, file.length() + "," + file.lastModified() + "," + sha256);
+        save();
+    }
+
+    public synchronized void remove(String fileName) throws IOException {
+        if (entries.remove(fileName) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Reads the whole file to compute its hash, compares it with the expected one and, if they match,
+     * records it. This is slow for big files: use it only for files that were never verified.
+     *
+     * @param expectedSha256 the hash the file must have, or null to just record it
+     * @return true if the file has the expected hash
+     */
+    public boolean verify(String fileName, String expectedSha256) throws IOException {
+        File file = new File(directory, fileName);
+        MessageDigest digest = newSha256();
+        byte[] buffer = new byte[256 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        String sha256 = toHex(digest.digest());
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256)) {
+            Log.e(TAG, "Checksum mismatch for " + fileName + ": " + sha256 + " instead of " + expectedSha256);
+            remove(fileName);
+            return false;
+        }
+        record(fileName, sha256);
+        return true;
+    }
+
+    private void save() throws IOException {
+        // write aside and rename, so a crash never leaves a half written cache
+        File tempFile = new File(directory, FILE_NAME + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            entries.store(out, "size,lastModified,sha256 of the verified model files");
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            throw new IOException("Failed to rename temp file to " + FILE_NAME);
+        }
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
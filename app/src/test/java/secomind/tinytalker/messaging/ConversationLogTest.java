@@ -0,0 +1,76 @@
+package secomind.tinytalker.messaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+/**
+ * Tests that the messages appended to a ConversationLog are read back after opening it again,
+ * also when the app was killed in the middle of an append.
+ */
+public class ConversationLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsTheMessagesAppendedBeforeTheOpening() throws IOException {
+        File directory = folder.getRoot();
+        ConversationLog log = ConversationLog.open(directory, "chat");
+        assertEquals(0, log.size());
+        log.append(new ChatMessage("Hello, how are you?", true, new Date(1000)));
+        log.append(new ChatMessage("Fine, thanks! \u00e8 \u2603", false, new Date(2000)));
+        log.append(new ChatMessage("", true, new Date(3000)));
+        log.close();
+
+        log = ConversationLog.open(directory, "chat");
+        assertEquals(3, log.size());
+        ChatMessage[] messages = new ChatMessage[2];
+        log.read(1, messages);
+        assertEquals("Fine, thanks! \u00e8 \u2603", messages[0].getMessage());
+        assertFalse(messages[0].isUser());
+        assertEquals(2000, messages[0].getTimestamp().getTime());
+        assertEquals("", messages[1].getMessage());
+        assertTrue(messages[1].isUser());
+        log.close();
+    }
+
+    @Test
+    public void dropsAMessageNotCompletelyWritten() throws IOException {
+        File directory = folder.getRoot();
+        ConversationLog log = ConversationLog.open(directory, "chat");
+        log.append(new ChatMessage("first", true, new Date(1000)));
+        log.append(new ChatMessage("second, cut in half", false, new Date(2000)));
+        log.close();
+
+        // the app was killed while writing the second message
+        File logFile = new File(directory, "chat.log");
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        log = ConversationLog.open(directory, "chat");
+        assertEquals(1, log.size());
+        ChatMessage[] messages = new ChatMessage[1];
+        log.read(0, messages);
+        assertEquals("first", messages[0].getMessage());
+
+        // the next message goes where the broken one was
+        log.append(new ChatMessage("third", true, new Date(3000)));
+        log.close();
+        log = ConversationLog.open(directory, "chat");
+        assertEquals(2, log.size());
+        log.read(1, messages);
+        assertEquals("third", messages[0].getMessage());
+        log.close();
+    }
+}
@@ -0,0 +1,90 @@
+package secomind.tinytalker.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests the SearchIndex, with enough messages to write and merge some segments.
+ */
+public class SearchIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // the messages of the merged segment, of two more segments and of the buffer
+    private static final int MESSAGES = (SearchIndex.MERGE_FACTOR + 2) * SearchIndex.FLUSH_MESSAGES + 100;
+
+    @Test
+    public void findsTheMessagesInSegmentsAndInMemory() throws IOException {
+        File directory = folder.getRoot();
+        SearchIndex index = SearchIndex.open(directory);
+        addMessages(index, 0, MESSAGES);
+
+        assertArrayEquals(expected("Seven"), index.search("seven"));
+        assertArrayEquals(expected("Seven", "Eleven"), index.search("ELEVEN, seven!"));
+        assertArrayEquals(new int[]{1234}, index.search("message 1234"));
+        assertArrayEquals(new int[0], index.search("seven nothing"));
+        assertArrayEquals(new int[0], index.search("  ...  "));
+        // the last word finds the longer words that begin with it
+        assertArrayEquals(expected("Seven"), index.search("sev"));
+
+        // the messages in memory are saved when the index is closed
+        index.close();
+        index = SearchIndex.open(directory);
+        assertEquals(MESSAGES, index.size());
+        assertArrayEquals(expected("Seven", "Eleven"), index.search("eleven seven"));
+    }
+
+    @Test
+    public void losesOnlyTheMessagesNotWritten() throws IOException {
+        File directory = folder.getRoot();
+        SearchIndex index = SearchIndex.open(directory);
+        addMessages(index, 0, SearchIndex.FLUSH_MESSAGES + 10);
+
+        // not closed: the app was killed, the messages in memory must be added again
+        index = SearchIndex.open(directory);
+        assertEquals(SearchIndex.FLUSH_MESSAGES, index.size());
+        addMessages(index, index.size(), MESSAGES);
+        assertArrayEquals(expected("Seven"), index.search("seven"));
+    }
+
+    @Test
+    public void splitsTheWords() {
+        assertEquals("[hello, world, 42, citt\u00e0]", SearchIndex.terms("Hello, world! 42 citt\u00e0... hello").toString());
+    }
+
+    private static void addMessages(SearchIndex index, int from, int to) throws IOException {
+        for (int id = from; id < to; id++) {
+            index.add(id, text(id));
+        }
+    }
+
+    private static String text(int id) {
+        StringBuilder text = new StringBuilder("Message " + id + ":");
+        if (id % 7 == 0) text.append(" Seven");
+        if (id % 11 == 0) text.append(" Eleven");
+        return text.toString();
+    }
+
+    /** The ids of the messages that contain all the words */
+    private static int[] expected(String... words) {
+        int count = 0;
+        int[] ids = new int[MESSAGES];
+        for (int id = 0; id < MESSAGES; id++) {
+            boolean found = true;
+            for (String word : words) {
+                found &= text(id).contains(" " + word);
+            }
+            if (found) ids[count++] = id;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+}
@@ -0,0 +1,174 @@
+package secomind.tinytalker.utilities;
+
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the FileChannel write path of the ModelDownloader with the loop it replaced
+ * (byte[4096] + FileOutputStream, one progress callback per read), downloading a file
+ * served over loopback.
+ *
+ * It is skipped by default, run it with:
+ * <pre>
+ * ./gradlew :app:testDebugUnitTest --tests '*ModelDownloaderBenchmark' -Pbenchmark
+ * </pre>
+ */
+public class ModelDownloaderBenchmark {
+
+    private static final int FILE_SIZE = 512 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private File served;
+
+    @Before
+    public void startServer() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("tinytalker.benchmark"));
+
+        served = folder.newFile("served.bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = new FileOutputStream(served)) {
+            for (int written = 0; written < FILE_SIZE; written += block.length) {
+                out.write(block);
+            }
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(FILE_SIZE));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            long start = 0;
+            long end = FILE_SIZE - 1;
+            int code = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Long.parseLong(bounds[0]);
+                end = Long.parseLong(bounds[1]);
+                code = 206;
+            }
+            exchange.sendResponseHeaders(code, end - start + 1);
+            try (RandomAccessFile file = new RandomAccessFile(served, "r");
+                 OutputStream body = exchange.getResponseBody()) {
+                file.getChannel().transferTo(start, end - start + 1, java.nio.channels.Channels.newChannel(body));
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/model.onnx.data";
+    }
+
+    @Test
+    public void compareWritePaths() throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            File directory = folder.newFolder();
+            long[] callbacks = new long[1];
+            long cpu = processCpuNanos();
+            long begin = System.nanoTime();
+            legacyDownload(url(), new File(directory, "model.onnx.data"), callbacks, null);
+            report("legacy byte[4096] loop", begin, cpu, callbacks[0]);
+
+            // the new path also computes the SHA-256, this is the fair comparison
+            directory = folder.newFolder();
+            callbacks[0] = 0;
+            cpu = processCpuNanos();
+            begin = System.nanoTime();
+            legacyDownload(url(), new File(directory, "model.onnx.data"), callbacks, ModelValidationCache.newSha256());
+            report("legacy byte[4096] loop + sha256", begin, cpu, callbacks[0]);
+
+            for (int connections : new int[]{1, 4}) {
+                directory = folder.newFolder();
+                callbacks[0] = 0;
+                cpu = processCpuNanos();
+                begin = System.nanoTime();
+                List<ModelDownloader.RemoteFile> files = Collections.singletonList(
+                        new ModelDownloader.RemoteFile(url(), "model.onnx.data"));
+                boolean ok = ModelDownloader.downloadModel(directory, files, connections, new ModelDownloader.DownloadCallback() {
+                    @Override
+                    public void onProgress(long lastBytesRead, long bytesRead, long bytesTotal) {
+                        callbacks[0]++;
+                    }
+
+                    @Override
+                    public void onDownloadComplete() {
+                    }
+                });
+                assertTrue(ok);
+                report("FileChannel, " + connections + " connection(s)", begin, cpu, callbacks[0]);
+            }
+        }
+    }
+
+    /** The download loop used by ModelDownloader before the FileChannel write path */
+    private static void legacyDownload(String url, File file, long[] callbacks, MessageDigest digest) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        long totalFileSize = connection.getHeaderFieldLong("Content-Length", -1);
+        long totalBytesRead = 0;
+        try (InputStream inputStream = connection.getInputStream();
+             FileOutputStream outputStream = new FileOutputStream(file)) {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+                if (digest != null) digest.update(buffer, 0, bytesRead);
+                callbacks[0]++;
+                totalBytesRead += bytesRead;
+            }
+        } finally {
+            connection.disconnect();
+        }
+        assertTrue(totalBytesRead == totalFileSize);
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static void report(String name, long beginNanos, long beginCpuNanos, long callbacks) {
+        double seconds = (System.nanoTime() - beginNanos) / 1e9;
+        double cpuSeconds = (processCpuNanos() - beginCpuNanos) / 1e9;
+        System.out.printf("%-32s %6.2f s  %7.1f MB/s  cpu %6.2f s  callbacks %d%n",
+                name, seconds, FILE_SIZE / 1048576.0 / seconds, cpuSeconds, callbacks);
+    }
+}
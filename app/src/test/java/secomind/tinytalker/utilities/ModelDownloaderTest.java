@@ -0,0 +1,205 @@
+package secomind.tinytalker.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests the ModelDownloader against a local HTTP server that supports Range requests.
+ */
+public class ModelDownloaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] data;
+    // number of GET requests served before the server starts answering with errors (-1: never)
+    private final AtomicInteger requestsBeforeFailure = new AtomicInteger(-1);
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        // a bit more than two chunks
+        data = new byte[(int) (2 * ModelDownloader.CHUNK_SIZE + 123)];
+        new Random(42).nextBytes(data);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(data.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            if (requestsBeforeFailure.getAndDecrement() == 0) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            int start = 0;
+            int end = data.length - 1;
+            int code = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = Integer.parseInt(bounds[1]);
+                code = 206;
+                rangeRequests.incrementAndGet();
+            }
+            exchange.sendResponseHeaders(code, end - start + 1);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(data, start, end - start + 1);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private List<ModelDownloader.RemoteFile> files() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/model.onnx.data";
+        return Collections.singletonList(new ModelDownloader.RemoteFile(url, "model.onnx.data"));
+    }
+
+    @Test
+    public void downloadsInParallelChunks() throws IOException {
+        File directory = folder.newFolder();
+        long[] lastProgress = new long[1];
+
+        boolean ok = ModelDownloader.downloadModel(directory, files(), 4, new ModelDownloader.DownloadCallback() {
+            @Override
+            public void onProgress(long lastBytesRead, long bytesRead, long bytesTotal) {
+                lastProgress[0] = bytesRead;
+            }
+
+            @Override
+            public void onDownloadComplete() {
+            }
+        });
+
+        assertTrue(ok);
+        assertEquals(3, rangeRequests.get());
+        assertEquals(data.length, lastProgress[0]);
+        assertArrayEquals(data, Files.readAllBytes(new File(directory, "model.onnx.data").toPath()));
+        assertFalse(new File(directory, "model.onnx.data.tmp.parts").exists());
+        assertEquals(ModelValidationCache.Status.VALID,
+                new ModelValidationCache(directory).check("model.onnx.data", sha256(data)));
+    }
+
+    @Test
+    public void rejectsAFileWithTheWrongHash() throws IOException {
+        File directory = folder.newFolder();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/model.onnx.data";
+        List<ModelDownloader.RemoteFile> files = Collections.singletonList(
+                new ModelDownloader.RemoteFile(url, "model.onnx.data", sha256(new byte[0])));
+
+        boolean ok = ModelDownloader.downloadModel(directory, files, 4, new ModelDownloader.DownloadCallback() {
+            @Override
+            public void onProgress(long lastBytesRead, long bytesRead, long bytesTotal) {
+            }
+
+            @Override
+            public void onDownloadComplete() {
+            }
+        });
+
+        assertFalse(ok);
+        assertFalse(new File(directory, "model.onnx.data").exists());
+        assertFalse(new File(directory, "model.onnx.data.tmp").exists());
+    }
+
+    @Test
+    public void decompressesAGzipWhileDownloading() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(data);
+        }
+        byte[] archive = compressed.toByteArray();
+        server.createContext("/archive/", exchange -> {
+            // the ranges are offered, but a compressed file must not use them
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(archive.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            if (exchange.getRequestHeaders().getFirst("Range") != null) rangeRequests.incrementAndGet();
+            exchange.sendResponseHeaders(200, archive.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(archive);
+            }
+        });
+        File directory = folder.newFolder();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/archive/model.onnx.data.gz";
+        List<ModelDownloader.RemoteFile> files = Collections.singletonList(new ModelDownloader.RemoteFile(
+                url, "model.onnx.data", sha256(data), data.length, ModelDownloader.Compression.GZIP));
+
+        boolean ok = ModelDownloader.downloadModel(directory, files, 4, null);
+
+        assertTrue(ok);
+        assertEquals(0, rangeRequests.get());
+        assertArrayEquals(data, Files.readAllBytes(new File(directory, "model.onnx.data").toPath()));
+        assertFalse(new File(directory, "model.onnx.data.tmp").exists());
+    }
+
+    private static String sha256(byte[] bytes) {
+        MessageDigest digest = ModelValidationCache.newSha256();
+        return ModelValidationCache.toHex(digest.digest(bytes));
+    }
+
+    @Test
+    public void resumesAnInterruptedDownload() throws IOException {
+        File directory = folder.newFolder();
+        ModelDownloader.DownloadCallback callback = new ModelDownloader.DownloadCallback() {
+            @Override
+            public void onProgress(long lastBytesRead, long bytesRead, long bytesTotal) {
+            }
+
+            @Override
+            public void onDownloadComplete() {
+            }
+        };
+
+        // the first chunk arrives, then the server fails
+        requestsBeforeFailure.set(1);
+        assertFalse(ModelDownloader.downloadModel(directory, files(), 1, callback));
+        assertTrue(new File(directory, "model.onnx.data.tmp.parts").exists());
+
+        // the second attempt only asks for the missing chunks
+        rangeRequests.set(0);
+        assertTrue(ModelDownloader.downloadModel(directory, files(), 4, callback));
+        assertEquals(2, rangeRequests.get());
+        assertArrayEquals(data, Files.readAllBytes(new File(directory, "model.onnx.data").toPath()));
+    }
+}
@@ -0,0 +1,32 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+// The classes under test do not use the Android APIs: they are compiled here from the
+// sources of the app, so that the benchmarks run on a plain JVM (no device needed)
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include("secomind/tinytalker/messaging/ChatMessage.java")
+            include("secomind/tinytalker/inference/PromptBuilder.java")
+            include("secomind/tinytalker/inference/ContextWindow.java")
+        }
+    }
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh.get())
+    // the gc profiler reports the allocation rate (gc.alloc.rate.norm = bytes per operation)
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,42 @@
+package secomind.tinytalker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Cost of creating a ChatMessage: it is done for every message of the user
+ * and for every answer of the model, on the UI thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChatMessageBenchmark {
+
+    private final String text = "Can you write a short poem about the sea?";
+
+    @Benchmark
+    public ChatMessage newUserMessage() {
+        return new ChatMessage(text, true);
+    }
+
+    /** A message that is also displayed: the hour and the day are formatted the first time */
+    @Benchmark
+    public String newMessageDisplayed() {
+        ChatMessage message = new ChatMessage(text, true);
+        return message.getDay() + message.getHour();
+    }
+
+    /** The (empty) answer of the model, created before the streaming begins */
+    @Benchmark
+    public ChatMessage newModelMessage() {
+        return new ChatMessage("", false);
+    }
+}
@@ -0,0 +1,88 @@
+package secomind.tinytalker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import secomind.tinytalker.inference.ContextWindow;
+import secomind.tinytalker.inference.PromptBuilder;
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Cost of turning the history of the chat into the input of the model, done at every
+ * message sent: the textual prompt (PromptBuilder) and the choice of the messages that
+ * fit in max_length (ContextWindow), both from scratch and when only one message is new.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PromptAssemblyBenchmark {
+
+    // same numbers as GenerationSession with the default max_length
+    private static final int BUDGET = 4096 - 512;
+    private static final int TURN_OVERHEAD = 4;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int messages;
+
+    private final String system = "This is a conversation between User and Llama, a friendly chatbot.";
+    private List<ChatMessage> history;
+    private List<ChatMessage> previousHistory;
+
+    @Setup
+    public void setUp() {
+        history = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            boolean isUser = i % 2 == 0;
+            ChatMessage message = new ChatMessage(isUser
+                    ? "Question number " + i + ": what is the capital of Italy?"
+                    : "Answer number " + i + ": the capital of Italy is Rome, a city with a very long history.", isUser);
+            // as if the tokenizer had already seen it, a token every ~4 characters
+            message.setTokenIds(new int[message.getMessage().length() / 4]);
+            history.add(message);
+        }
+        previousHistory = new ArrayList<>(history.subList(0, messages - 1));
+    }
+
+    /** A window that already contains the history but the last message */
+    @State(Scope.Thread)
+    public static class UpToDateWindow {
+        ContextWindow window = new ContextWindow(BUDGET, ContextWindow.Policy.DROP_OLDEST, 0, TURN_OVERHEAD);
+
+        @Setup(Level.Invocation)
+        public void setUp(PromptAssemblyBenchmark benchmark) {
+            window.reset();
+            window.update(benchmark.previousHistory);
+        }
+    }
+
+    @Benchmark
+    public String buildPrompt() {
+        return PromptBuilder.buildPrompt(system, history);
+    }
+
+    /** A window that sees the whole history for the first time, e.g. after a reset */
+    @Benchmark
+    public int contextWindowFromScratch() {
+        ContextWindow fresh = new ContextWindow(BUDGET, ContextWindow.Policy.DROP_OLDEST, 0, TURN_OVERHEAD);
+        fresh.update(history);
+        return fresh.getStart();
+    }
+
+    /** The usual case: only the last message is new to the window */
+    @Benchmark
+    public int contextWindowOneNewMessage(UpToDateWindow upToDate) {
+        upToDate.window.update(history);
+        return upToDate.window.getStart();
+    }
+}
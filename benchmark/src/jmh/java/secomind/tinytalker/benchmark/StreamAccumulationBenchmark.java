@@ -0,0 +1,82 @@
+package secomind.tinytalker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import secomind.tinytalker.messaging.ChatMessage;
+
+/**
+ * Cost of accumulating the text of an answer while it is streamed, for the whole answer.
+ *
+ * The pieces of text decoded by the model are moved into the ChatMessage either one by one,
+ * or in batches, as StreamingMessageUpdater does (one batch per display frame).
+ * appendMessage only appends to a StringBuilder (the text is built when it is read), so both
+ * should stay close to the lower bound, even for long answers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamAccumulationBenchmark {
+
+    // at ~20 tokens/s and 60 frames/s a frame rarely has more than one token,
+    // but on fast devices or after a pause of the UI thread the batches get bigger
+    private static final int TOKENS_PER_FRAME = 4;
+
+    @Param({"64", "512", "4096"})
+    public int tokens;
+
+    private String[] deltas;
+
+    @Setup
+    public void setUp() {
+        // pieces of words, like the ones produced by a BPE tokenizer
+        String[] pieces = {" the", " model", "ing", " a", ",", " answer", "s", " of", " token", "."};
+        Random random = new Random(42);
+        deltas = new String[tokens];
+        for (int i = 0; i < tokens; i++) {
+            deltas[i] = pieces[random.nextInt(pieces.length)];
+        }
+    }
+
+    @Benchmark
+    public ChatMessage appendEveryToken() {
+        ChatMessage message = new ChatMessage("", false);
+        for (String delta : deltas) {
+            message.appendMessage(delta);
+        }
+        return message;
+    }
+
+    @Benchmark
+    public ChatMessage appendEveryFrame() {
+        ChatMessage message = new ChatMessage("", false);
+        StringBuilder pending = new StringBuilder();
+        for (int i = 0; i < deltas.length; i++) {
+            pending.append(deltas[i]);
+            if ((i + 1) % TOKENS_PER_FRAME == 0 || i == deltas.length - 1) {
+                message.appendMessage(pending.toString());
+                pending.setLength(0);
+            }
+        }
+        return message;
+    }
+
+    /** The lower bound: the text is never copied into the message until the end */
+    @Benchmark
+    public String stringBuilderOnly() {
+        StringBuilder text = new StringBuilder();
+        for (String delta : deltas) {
+            text.append(delta);
+        }
+        return text.toString();
+    }
+}
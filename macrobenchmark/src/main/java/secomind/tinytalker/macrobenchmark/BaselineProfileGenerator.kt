@@ -0,0 +1,30 @@
+package secomind.tinytalker.macrobenchmark
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Generates the baseline profile of the app: the classes and methods used while the
+ * chat is opened, scrolled and while an answer is streamed, that ART compiles ahead of time.
+ *
+ * Run it on a real phone (or a rooted emulator) with:
+ * ./gradlew :app:generateBaselineProfile
+ * The profile is written in app/src/release/generated/baselineProfiles.
+ */
+@RunWith(AndroidJUnit4::class)
+class BaselineProfileGenerator {
+
+    @get:Rule
+    val baselineProfileRule = BaselineProfileRule()
+
+    @Test
+    fun generate() = baselineProfileRule.collect(packageName = PACKAGE_NAME) {
+        pressHome()
+        startChat(history = 200)
+        scrollChat(flings = 2)
+        sendMessageAndWaitForAnswer()
+    }
+}
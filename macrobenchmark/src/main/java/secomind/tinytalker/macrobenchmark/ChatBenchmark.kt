@@ -0,0 +1,49 @@
+package secomind.tinytalker.macrobenchmark
+
+import androidx.benchmark.macro.BaselineProfileMode
+import androidx.benchmark.macro.CompilationMode
+import androidx.benchmark.macro.FrameTimingMetric
+import androidx.benchmark.macro.StartupMode
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Frame timing (jank) of the chat: while scrolling a long conversation,
+ * and while an answer is streamed into the list.
+ *
+ * Run it on a real phone with:
+ * ./gradlew :macrobenchmark:connectedBenchmarkReleaseAndroidTest
+ */
+@RunWith(AndroidJUnit4::class)
+class ChatBenchmark {
+
+    @get:Rule
+    val benchmarkRule = MacrobenchmarkRule()
+
+    @Test
+    fun scrollLongConversation() = benchmarkRule.measureRepeated(
+        packageName = PACKAGE_NAME,
+        metrics = listOf(FrameTimingMetric()),
+        compilationMode = CompilationMode.Partial(BaselineProfileMode.Require),
+        startupMode = StartupMode.COLD,
+        iterations = 5,
+        setupBlock = { startChat(history = 5000) }
+    ) {
+        scrollChat()
+    }
+
+    @Test
+    fun streamAnswer() = benchmarkRule.measureRepeated(
+        packageName = PACKAGE_NAME,
+        metrics = listOf(FrameTimingMetric()),
+        compilationMode = CompilationMode.Partial(BaselineProfileMode.Require),
+        startupMode = StartupMode.COLD,
+        iterations = 5,
+        setupBlock = { startChat(history = 20) }
+    ) {
+        sendMessageAndWaitForAnswer()
+    }
+}
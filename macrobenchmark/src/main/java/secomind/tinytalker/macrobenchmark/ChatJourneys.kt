@@ -0,0 +1,51 @@
+package secomind.tinytalker.macrobenchmark
+
+import android.content.Intent
+import androidx.benchmark.macro.MacrobenchmarkScope
+import androidx.test.uiautomator.By
+import androidx.test.uiautomator.Direction
+import androidx.test.uiautomator.Until
+
+/**
+ * What the benchmarks and the baseline profile generator do with the app.
+ * The app always answers with its fake model (see FakeResponder), so the runs
+ * do not depend on the download or on the speed of the real model.
+ */
+
+const val PACKAGE_NAME = "secomind.tinytalker"
+
+// same names as in MainChatActivity
+private const val EXTRA_FAKE_ANSWER_TOKENS = "secomind.tinytalker.FAKE_ANSWER_TOKENS"
+private const val EXTRA_FAKE_HISTORY = "secomind.tinytalker.FAKE_HISTORY"
+
+// words of every fake answer: at 40 ms per word, about 6 s of streaming
+private const val FAKE_ANSWER_TOKENS = 150
+
+private const val TIMEOUT_MS = 30_000L
+
+/** Opens the chat, with a conversation of [history] messages already there */
+fun MacrobenchmarkScope.startChat(history: Int = 0) {
+    startActivityAndWait { intent: Intent ->
+        intent.putExtra(EXTRA_FAKE_ANSWER_TOKENS, FAKE_ANSWER_TOKENS)
+        intent.putExtra(EXTRA_FAKE_HISTORY, history)
+    }
+    device.wait(Until.hasObject(By.res(PACKAGE_NAME, "recycler_gchat")), TIMEOUT_MS)
+}
+
+/** Scrolls the conversation up, towards the oldest messages, and then down again */
+fun MacrobenchmarkScope.scrollChat(flings: Int = 5) {
+    val list = device.findObject(By.res(PACKAGE_NAME, "recycler_gchat"))
+    // do not start the gestures on the system navigation bar
+    list.setGestureMargin(device.displayWidth / 5)
+    repeat(flings) { list.fling(Direction.UP) }
+    repeat(flings) { list.fling(Direction.DOWN) }
+}
+
+/** Sends a message and waits until the whole answer has been streamed */
+fun MacrobenchmarkScope.sendMessageAndWaitForAnswer() {
+    device.findObject(By.res(PACKAGE_NAME, "edit_gchat_message")).text = "Tell me something"
+    device.findObject(By.res(PACKAGE_NAME, "button_gchat_send")).click()
+    // the stop button is shown while the answer is being generated
+    device.wait(Until.hasObject(By.res(PACKAGE_NAME, "button_gchat_stop")), TIMEOUT_MS)
+    device.wait(Until.gone(By.res(PACKAGE_NAME, "button_gchat_stop")), TIMEOUT_MS)
+}
@@ -0,0 +1,51 @@
+package secomind.tinytalker.macrobenchmark
+
+import androidx.benchmark.macro.BaselineProfileMode
+import androidx.benchmark.macro.CompilationMode
+import androidx.benchmark.macro.StartupMode
+import androidx.benchmark.macro.StartupTimingMetric
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Time to open MainChatActivity, cold (process not running) and warm (process running,
+ * activity recreated), with and without the baseline profile.
+ *
+ * Run it on a real phone with:
+ * ./gradlew :macrobenchmark:connectedBenchmarkReleaseAndroidTest
+ */
+@RunWith(AndroidJUnit4::class)
+class StartupBenchmark {
+
+    @get:Rule
+    val benchmarkRule = MacrobenchmarkRule()
+
+    @Test
+    fun coldStartWithoutProfile() = startup(StartupMode.COLD, CompilationMode.None())
+
+    @Test
+    fun coldStartWithBaselineProfile() =
+        startup(StartupMode.COLD, CompilationMode.Partial(BaselineProfileMode.Require))
+
+    @Test
+    fun warmStartWithoutProfile() = startup(StartupMode.WARM, CompilationMode.None())
+
+    @Test
+    fun warmStartWithBaselineProfile() =
+        startup(StartupMode.WARM, CompilationMode.Partial(BaselineProfileMode.Require))
+
+    private fun startup(startupMode: StartupMode, compilationMode: CompilationMode) =
+        benchmarkRule.measureRepeated(
+            packageName = PACKAGE_NAME,
+            metrics = listOf(StartupTimingMetric()),
+            compilationMode = compilationMode,
+            startupMode = startupMode,
+            iterations = 10,
+            setupBlock = { pressHome() }
+        ) {
+            startChat()
+        }
+}